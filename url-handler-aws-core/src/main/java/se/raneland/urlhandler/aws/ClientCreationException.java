@@ -9,6 +9,9 @@ import java.io.IOException;
  * @since 1.0
  */
 public class ClientCreationException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
     public ClientCreationException() {
     }
 
@@ -0,0 +1,90 @@
+package se.raneland.urlhandler.aws;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Cache of {@link RefreshingCredentialsProvider}s shared between clients with the same identity.
+ *
+ * All providers in a cache are refreshed on a single daemon thread.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class CredentialsProviderCache {
+
+    public static final long DEFAULT_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+
+    private static final CredentialsProviderCache DEFAULT = new CredentialsProviderCache();
+
+    /**
+     * Get the cache shared by all {@link DefaultAwsClientFactory}s that aren't given a cache of their own.
+     *
+     * @return The shared cache
+     */
+    public static CredentialsProviderCache getDefault() {
+        return DEFAULT;
+    }
+
+    private final ConcurrentHashMap<String, RefreshingCredentialsProvider> providers;
+    private final ScheduledExecutorService executor;
+    private final long refreshInterval;
+
+    public CredentialsProviderCache() {
+        this(DEFAULT_REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a new cache that refreshes credentials on its own daemon thread.
+     *
+     * @param refreshInterval How often credentials should be refreshed if their expiry isn't known
+     * @param unit The unit of {@code refreshInterval}
+     */
+    public CredentialsProviderCache(long refreshInterval, TimeUnit unit) {
+        this(refreshInterval, unit, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "aws-credentials-refresher");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Create a new cache that refreshes credentials on the provided executor.
+     *
+     * @param refreshInterval How often credentials should be refreshed if their expiry isn't known
+     * @param unit The unit of {@code refreshInterval}
+     * @param executor The executor to refresh credentials on
+     */
+    public CredentialsProviderCache(long refreshInterval, TimeUnit unit, ScheduledExecutorService executor) {
+        this.providers = new ConcurrentHashMap<>();
+        this.executor = executor;
+        this.refreshInterval = unit.toMillis(refreshInterval);
+    }
+
+    /**
+     * Get the provider for an identity, creating it if there is none.
+     *
+     * @param identity The identity, e.g. the profile name, that the credentials belong to
+     * @param factory Creates the provider to load credentials from if there is no provider for the identity
+     * @return A provider that refreshes the credentials in the background
+     */
+    public AWSCredentialsProvider get(String identity, Supplier<? extends AWSCredentialsProvider> factory) {
+        return providers.computeIfAbsent(identity, key -> new RefreshingCredentialsProvider(factory.get(),
+                refreshInterval, TimeUnit.MILLISECONDS, executor));
+    }
+
+    /**
+     * Stop refreshing and forget all providers.
+     */
+    public void clear() {
+        providers.values().removeIf(provider -> {
+            provider.stop();
+            return true;
+        });
+    }
+}
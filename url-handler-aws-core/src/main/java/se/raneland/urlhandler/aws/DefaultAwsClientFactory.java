@@ -3,11 +3,12 @@ package se.raneland.urlhandler.aws;
 import com.amazonaws.AmazonWebServiceClient;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.internal.StaticCredentialsProvider;
 
+import java.io.UncheckedIOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.concurrent.ConcurrentHashMap;
@@ -17,6 +18,9 @@ import java.util.concurrent.ConcurrentHashMap;
  *
  * Caches created clients and creates new clients using reflection.
  *
+ * Credentials that have to be resolved, i.e. profiles and the default provider chain, are shared through a
+ * {@link CredentialsProviderCache} and refreshed in the background so that requests don't block on credential lookups.
+ *
  * @author Raniz
  * @since 1.0
  */
@@ -24,6 +28,7 @@ public class DefaultAwsClientFactory<C extends AmazonWebServiceClient> implement
 
     private final Class<C> clientClass;
     private final String serviceName;
+    private final CredentialsProviderCache credentialsCache;
     private final ConcurrentHashMap<ClientOptions, C> instances;
 
     public DefaultAwsClientFactory(Class<C> clientClass) {
@@ -31,8 +36,13 @@ public class DefaultAwsClientFactory<C extends AmazonWebServiceClient> implement
     }
 
     public DefaultAwsClientFactory(Class<C> clientClass, String serviceName) {
+        this(clientClass, serviceName, CredentialsProviderCache.getDefault());
+    }
+
+    public DefaultAwsClientFactory(Class<C> clientClass, String serviceName, CredentialsProviderCache credentialsCache) {
         this.clientClass = clientClass;
         this.serviceName = serviceName;
+        this.credentialsCache = credentialsCache;
         this.instances = new ConcurrentHashMap<ClientOptions, C>();
     }
 
@@ -41,19 +51,46 @@ public class DefaultAwsClientFactory<C extends AmazonWebServiceClient> implement
         if(options == null) {
             options = new ClientOptions();
         }
-        if(instances.containsKey(options)) {
-            return instances.get(options);
+        C client = instances.get(options);
+        if(client != null) {
+            return client;
         }
+        try {
+            // Only one client is created for each set of options even when they are requested concurrently
+            return instances.computeIfAbsent(options, key -> {
+                try {
+                    return createConfiguredClient(key);
+                } catch(ClientCreationException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch(UncheckedIOException e) {
+            throw (ClientCreationException) e.getCause();
+        }
+    }
+
+    private C createConfiguredClient(ClientOptions options) throws ClientCreationException {
         AWSCredentialsProvider credentialsProvider = createCredentials(options);
         ClientConfiguration configuration = createConfiguration(options);
         C client = createClient(credentialsProvider, configuration);
+        applyEndpoint(client, options);
+        return client;
+    }
+
+    /**
+     * Point a client at the endpoint or region in the options.
+     *
+     * The SDK deprecates mutating clients in favour of its client builders, but the builders are per service while
+     * this factory creates clients of any service through their {@link AWSCredentialsProvider},
+     * {@link ClientConfiguration} constructor, so the setters are the only service independent way to do this.
+     */
+    @SuppressWarnings("deprecation")
+    private void applyEndpoint(C client, ClientOptions options) {
         if(options.getEndpoint() != null) {
             client.setEndpoint(options.getEndpoint());
         } else if (options.getRegion() != null) {
             client.setRegion(options.getRegion());
         }
-        instances.put(options, client);
-        return client;
     }
 
     protected C createClient(AWSCredentialsProvider credentialsProvider, ClientConfiguration configuration) throws ClientCreationException {
@@ -67,10 +104,11 @@ public class DefaultAwsClientFactory<C extends AmazonWebServiceClient> implement
 
     protected AWSCredentialsProvider createCredentials(ClientOptions options) {
         if (options.getProfile() != null) {
-            return new ProfileCredentialsProvider(options.getProfile());
+            String profile = options.getProfile();
+            return credentialsCache.get("profile:" + profile, () -> new ProfileCredentialsProvider(profile));
         }
         if (options.getAccessKeyId() != null && options.getSecretAccessKey() != null) {
-            return new StaticCredentialsProvider(new BasicAWSCredentials(options.getAccessKeyId(), options.getSecretAccessKey()));
+            return new AWSStaticCredentialsProvider(new BasicAWSCredentials(options.getAccessKeyId(), options.getSecretAccessKey()));
         }
         return createDefaultCredentials();
     }
@@ -80,32 +118,32 @@ public class DefaultAwsClientFactory<C extends AmazonWebServiceClient> implement
         String accessKeyId = System.getProperty("aws." + serviceName + ".accessKeyId");
         String secretAccessKey = System.getProperty("aws." + serviceName + ".secretAccessKey");
         if(accessKeyId != null && secretAccessKey != null) {
-            return new StaticCredentialsProvider(new BasicAWSCredentials(accessKeyId, secretAccessKey));
+            return new AWSStaticCredentialsProvider(new BasicAWSCredentials(accessKeyId, secretAccessKey));
         }
 
         // Try environment properties
         accessKeyId = System.getenv("AWS_" + serviceName.toUpperCase() + "_ACCESS_KEy_ID");
         secretAccessKey = System.getenv("AWS_" + serviceName.toUpperCase() + "_SECRET_ACCESS_KEY");
         if(accessKeyId != null && secretAccessKey != null) {
-            return new StaticCredentialsProvider(new BasicAWSCredentials(accessKeyId, secretAccessKey));
+            return new AWSStaticCredentialsProvider(new BasicAWSCredentials(accessKeyId, secretAccessKey));
         }
 
         // Try global system properties
         accessKeyId = System.getProperty("aws.accessKeyId");
         secretAccessKey = System.getProperty("aws.secretAccessKey");
         if(accessKeyId != null && secretAccessKey != null) {
-            return new StaticCredentialsProvider(new BasicAWSCredentials(accessKeyId, secretAccessKey));
+            return new AWSStaticCredentialsProvider(new BasicAWSCredentials(accessKeyId, secretAccessKey));
         }
 
         // Try global environment properties
         accessKeyId = System.getenv("AWS_ACCESS_KEy_ID");
         secretAccessKey = System.getenv("AWS_SECRET_ACCESS_KEY");
         if(accessKeyId != null && secretAccessKey != null) {
-            return new StaticCredentialsProvider(new BasicAWSCredentials(accessKeyId, secretAccessKey));
+            return new AWSStaticCredentialsProvider(new BasicAWSCredentials(accessKeyId, secretAccessKey));
         }
 
         // Use the default chain
-        return new DefaultAWSCredentialsProviderChain();
+        return credentialsCache.get("default", DefaultAWSCredentialsProviderChain::new);
     }
 
     protected ClientConfiguration createConfiguration(ClientOptions options) {
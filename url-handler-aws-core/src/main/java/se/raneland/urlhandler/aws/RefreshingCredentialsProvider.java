@@ -0,0 +1,223 @@
+package se.raneland.urlhandler.aws;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.time.Clock;
+import java.util.Date;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AWSCredentialsProvider} that keeps the credentials of another provider cached and refreshes them in the
+ * background.
+ *
+ * Credentials are loaded in the background as soon as the provider is created and then refreshed ahead of their
+ * expiry so that the credentials are already resolved when a request needs them. Only a request made before the
+ * initial load has finished, or after the credentials have expired, blocks, and only until that load is done.
+ *
+ * The expiry of the credentials is read from the delegate if it has a public {@code getCredentialsExpiration()}
+ * method, like e.g. {@link com.amazonaws.auth.ContainerCredentialsProvider}. Most providers, including
+ * {@link com.amazonaws.auth.InstanceProfileCredentialsProvider} and the default provider chain, don't expose it.
+ * Temporary credentials, i.e. {@link AWSSessionCredentials}, without a known expiry are therefore considered expired a
+ * maximum age after they were loaded. Credentials without a known expiry are refreshed at a fixed interval.
+ *
+ * If a background refresh fails the previous credentials are kept until they expire, after which the next request
+ * loads them again itself.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class RefreshingCredentialsProvider implements AWSCredentialsProvider {
+
+    public static final long DEFAULT_EXPIRY_MARGIN = TimeUnit.MINUTES.toMillis(5);
+    public static final long MIN_REFRESH_DELAY = TimeUnit.SECONDS.toMillis(10);
+    public static final long DEFAULT_MAX_SESSION_AGE = TimeUnit.MINUTES.toMillis(15);
+
+    private final AWSCredentialsProvider delegate;
+    private final long refreshInterval;
+    private final long expiryMargin;
+    private final long maxSessionAge;
+    private final ScheduledExecutorService executor;
+    private final Clock clock;
+    private final Method expirationMethod;
+
+    private volatile AWSCredentials credentials;
+    private volatile long expires = Long.MAX_VALUE;
+    private volatile ScheduledFuture<?> refresher;
+    private volatile boolean stopped;
+
+    /**
+     * Create a new provider and start loading credentials in the background.
+     *
+     * @param delegate The provider to load credentials from
+     * @param refreshInterval How often the credentials should be refreshed if their expiry isn't known
+     * @param unit The unit of {@code refreshInterval}
+     * @param executor The executor to load and refresh credentials on
+     */
+    public RefreshingCredentialsProvider(AWSCredentialsProvider delegate, long refreshInterval, TimeUnit unit,
+                                         ScheduledExecutorService executor) {
+        this(delegate, unit.toMillis(refreshInterval), DEFAULT_EXPIRY_MARGIN, TimeUnit.MILLISECONDS, executor);
+    }
+
+    /**
+     * Create a new provider and start loading credentials in the background.
+     *
+     * @param delegate The provider to load credentials from
+     * @param refreshInterval How often the credentials should be refreshed if their expiry isn't known
+     * @param expiryMargin How long before they expire credentials should be refreshed
+     * @param unit The unit of {@code refreshInterval} and {@code expiryMargin}
+     * @param executor The executor to load and refresh credentials on
+     */
+    public RefreshingCredentialsProvider(AWSCredentialsProvider delegate, long refreshInterval, long expiryMargin,
+                                         TimeUnit unit, ScheduledExecutorService executor) {
+        this(delegate, refreshInterval, expiryMargin, unit.convert(DEFAULT_MAX_SESSION_AGE, TimeUnit.MILLISECONDS),
+                unit, executor);
+    }
+
+    /**
+     * Create a new provider and start loading credentials in the background.
+     *
+     * @param delegate The provider to load credentials from
+     * @param refreshInterval How often the credentials should be refreshed if their expiry isn't known
+     * @param expiryMargin How long before they expire credentials should be refreshed
+     * @param maxSessionAge For how long temporary credentials without a known expiry may be used
+     * @param unit The unit of {@code refreshInterval}, {@code expiryMargin} and {@code maxSessionAge}
+     * @param executor The executor to load and refresh credentials on
+     */
+    public RefreshingCredentialsProvider(AWSCredentialsProvider delegate, long refreshInterval, long expiryMargin,
+                                         long maxSessionAge, TimeUnit unit, ScheduledExecutorService executor) {
+        this(delegate, refreshInterval, expiryMargin, maxSessionAge, unit, executor, Clock.systemUTC());
+    }
+
+    RefreshingCredentialsProvider(AWSCredentialsProvider delegate, long refreshInterval, long expiryMargin,
+                                  long maxSessionAge, TimeUnit unit, ScheduledExecutorService executor, Clock clock) {
+        this.delegate = delegate;
+        this.refreshInterval = unit.toMillis(refreshInterval);
+        this.expiryMargin = unit.toMillis(expiryMargin);
+        this.maxSessionAge = unit.toMillis(maxSessionAge);
+        this.executor = executor;
+        this.clock = clock;
+        this.expirationMethod = findExpirationMethod(delegate);
+        executor.execute(this::load);
+    }
+
+    @Override
+    public AWSCredentials getCredentials() {
+        AWSCredentials current = credentials;
+        if(current != null && clock.millis() < expires) {
+            return current;
+        }
+        // Nothing has been loaded yet or the credentials have expired, wait for the load or try again if it failed
+        synchronized (this) {
+            if(credentials == null || clock.millis() >= expires) {
+                if(credentials != null) {
+                    delegate.refresh();
+                }
+                update(delegate.getCredentials());
+            }
+            return credentials;
+        }
+    }
+
+    /**
+     * Reload the credentials in the background.
+     */
+    @Override
+    public void refresh() {
+        executor.execute(this::reload);
+    }
+
+    /**
+     * Stop refreshing the credentials.
+     */
+    public void stop() {
+        stopped = true;
+        ScheduledFuture<?> current = refresher;
+        if(current != null) {
+            current.cancel(false);
+        }
+    }
+
+    public AWSCredentialsProvider getDelegate() {
+        return delegate;
+    }
+
+    private synchronized void load() {
+        try {
+            if(credentials == null) {
+                update(delegate.getCredentials());
+            }
+        } catch(RuntimeException e) {
+            // Will be retried when the credentials are needed
+        }
+        scheduleReload();
+    }
+
+    private synchronized void reload() {
+        try {
+            delegate.refresh();
+            update(delegate.getCredentials());
+        } catch(RuntimeException e) {
+            // Keep the old credentials until the next refresh or until they expire
+        }
+        scheduleReload();
+    }
+
+    private void update(AWSCredentials loaded) {
+        Date expiration = getExpiration();
+        credentials = loaded;
+        if(expiration != null) {
+            expires = expiration.getTime();
+        } else if(loaded instanceof AWSSessionCredentials) {
+            // Temporary credentials always expire, don't hand them out forever if reloading them keeps failing
+            expires = clock.millis() + maxSessionAge;
+        } else {
+            expires = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Schedule the next reload a margin before the credentials expire or after the refresh interval if the expiry
+     * isn't known.
+     */
+    private void scheduleReload() {
+        if(stopped) {
+            return;
+        }
+        long delay = refreshInterval;
+        if(expires != Long.MAX_VALUE) {
+            delay = Math.min(delay, Math.max(MIN_REFRESH_DELAY, expires - expiryMargin - clock.millis()));
+        }
+        refresher = executor.schedule(this::reload, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the expiry of the credentials most recently loaded by the delegate.
+     *
+     * @return When the credentials expire or null if it isn't known
+     */
+    protected Date getExpiration() {
+        if(expirationMethod == null) {
+            return null;
+        }
+        try {
+            return (Date) expirationMethod.invoke(delegate);
+        } catch(IllegalAccessException | InvocationTargetException e) {
+            return null;
+        }
+    }
+
+    private static Method findExpirationMethod(AWSCredentialsProvider delegate) {
+        try {
+            Method method = delegate.getClass().getMethod("getCredentialsExpiration");
+            return Date.class.isAssignableFrom(method.getReturnType()) ? method : null;
+        } catch(NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package se.raneland.urlhandler.aws
 
+import com.amazonaws.ClientConfiguration
+import com.amazonaws.auth.AWSCredentialsProvider
+import com.amazonaws.auth.AWSStaticCredentialsProvider
 import com.amazonaws.auth.BasicAWSCredentials
 import com.amazonaws.auth.profile.ProfileCredentialsProvider
-import com.amazonaws.internal.StaticCredentialsProvider
 import com.amazonaws.regions.Region
 import com.amazonaws.regions.Regions
 import com.amazonaws.services.simpledb.AmazonSimpleDB
 import com.amazonaws.services.simpledb.AmazonSimpleDBClient
 import spock.lang.Specification
 
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
 /**
  * Created by raniz on 2015-08-25.
  */
@@ -36,8 +43,27 @@ class DefaultAwsClientFactorySpec extends Specification {
 
         then: "A client is created with the correct profile set"
         assert client
-        assert client.@awsCredentialsProvider instanceof ProfileCredentialsProvider
-        assert client.@awsCredentialsProvider.profileName == profileName
+        assert client.@awsCredentialsProvider instanceof RefreshingCredentialsProvider
+        assert client.@awsCredentialsProvider.delegate instanceof ProfileCredentialsProvider
+        assert client.@awsCredentialsProvider.delegate.profileName == profileName
+    }
+
+    def "That clients with the same identity share credentials provider"() {
+        given: "A client factory and two configurations with the same profile but different regions"
+        def factory = new DefaultAwsClientFactory<>(AmazonSimpleDBClient.class, "sdb", new CredentialsProviderCache())
+        def options1 = new ClientOptions(profile: "profile", region: Region.getRegion(Regions.EU_WEST_1))
+        def options2 = new ClientOptions(profile: "profile", region: Region.getRegion(Regions.US_EAST_1))
+        def options3 = new ClientOptions(profile: "other")
+
+        when: "Clients are requested"
+        def client1 = factory.create(options1)
+        def client2 = factory.create(options2)
+        def client3 = factory.create(options3)
+
+        then: "Only the clients with the same profile share credentials provider"
+        assert !client1.is(client2)
+        assert client1.@awsCredentialsProvider.is(client2.@awsCredentialsProvider)
+        assert !client1.@awsCredentialsProvider.is(client3.@awsCredentialsProvider)
     }
 
     def "That a client with a specific access key can be created"() {
@@ -52,7 +78,7 @@ class DefaultAwsClientFactorySpec extends Specification {
 
         then: "A client is created with the correct profile set"
         assert client
-        assert client.@awsCredentialsProvider instanceof StaticCredentialsProvider
+        assert client.@awsCredentialsProvider instanceof AWSStaticCredentialsProvider
         assert client.@awsCredentialsProvider.credentials instanceof BasicAWSCredentials
         assert client.@awsCredentialsProvider.credentials.accessKey == accessKeyId
         assert client.@awsCredentialsProvider.credentials.secretKey == secretAccessKey
@@ -85,4 +111,32 @@ class DefaultAwsClientFactorySpec extends Specification {
         assert client
         assert client.@endpoint.toString().endsWith(endpoint)
     }
+
+    def "That concurrent requests for the same options get the same client"() {
+        given: "A client factory that is slow to create clients"
+        def created = new AtomicInteger()
+        def factory = new DefaultAwsClientFactory<AmazonSimpleDBClient>(AmazonSimpleDBClient.class) {
+            @Override
+            protected AmazonSimpleDBClient createClient(AWSCredentialsProvider credentialsProvider, ClientConfiguration configuration) {
+                created.incrementAndGet()
+                Thread.sleep(100)
+                return super.createClient(credentialsProvider, configuration)
+            }
+        }
+        def options = new ClientOptions(accessKeyId: "keyId", secretAccessKey: "accessKey")
+        def start = new CountDownLatch(1)
+        def executor = Executors.newFixedThreadPool(8)
+
+        when: "A client is requested from several threads at the same time"
+        def futures = (1..8).collect { executor.submit({ start.await(); factory.create(options) } as Callable) }
+        start.countDown()
+        def clients = futures.collect { it.get() }
+
+        then: "Only one client is created"
+        created.get() == 1
+        clients.every { it.is(clients[0]) }
+
+        cleanup:
+        executor.shutdown()
+    }
 }
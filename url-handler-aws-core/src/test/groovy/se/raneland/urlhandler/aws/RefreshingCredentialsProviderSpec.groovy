@@ -0,0 +1,281 @@
+package se.raneland.urlhandler.aws
+
+import com.amazonaws.SDKGlobalConfiguration
+import com.amazonaws.auth.AWSCredentials
+import com.amazonaws.auth.AWSCredentialsProvider
+import com.amazonaws.auth.BasicAWSCredentials
+import com.amazonaws.auth.BasicSessionCredentials
+import com.amazonaws.auth.InstanceProfileCredentialsProvider
+import com.sun.net.httpserver.HttpServer
+import spock.lang.Specification
+
+import java.time.Clock
+import java.time.Instant
+import java.time.temporal.ChronoUnit
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class RefreshingCredentialsProviderSpec extends Specification {
+
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor()
+
+    def cleanup() {
+        executor.shutdownNow()
+    }
+
+    def "That credentials are loaded in the background and cached"() {
+        given: "A delegate provider"
+        def delegate = Mock(AWSCredentialsProvider)
+        def credentials = new BasicAWSCredentials("keyId", "accessKey")
+
+        when: "A provider is created and credentials are requested twice"
+        def provider = new RefreshingCredentialsProvider(delegate, 1, TimeUnit.HOURS, executor)
+        executor.submit({}).get()
+        def result = [provider.credentials, provider.credentials]
+
+        then: "The credentials are only loaded once"
+        1 * delegate.getCredentials() >> credentials
+        result.every { it.is credentials }
+    }
+
+    def "That a failed background load is retried when the credentials are needed"() {
+        given: "A delegate provider that fails the first time"
+        def delegate = Mock(AWSCredentialsProvider)
+        def credentials = new BasicAWSCredentials("keyId", "accessKey")
+
+        when: "A provider is created and credentials are requested"
+        def provider = new RefreshingCredentialsProvider(delegate, 1, TimeUnit.HOURS, executor)
+        executor.submit({}).get()
+        def result = provider.credentials
+
+        then: "The credentials are loaded again"
+        2 * delegate.getCredentials() >> { throw new IllegalStateException() } >> credentials
+        result.is credentials
+    }
+
+    def "That credentials are refreshed a margin before they expire"() {
+        given: "A provider that hands out credentials that expire in an hour and an executor that is stepped manually"
+        def delegate = new ExpiringProvider(expiresIn: TimeUnit.HOURS.toMillis(1))
+        def manual = new ManualExecutor()
+
+        when: "A provider is created"
+        def provider = new RefreshingCredentialsProvider(delegate, 120, 5, 15, TimeUnit.MINUTES, manual.executor, delegate.clock)
+        def first = provider.credentials
+
+        then: "The credentials are loaded and a reload is scheduled five minutes before they expire"
+        first.AWSAccessKeyId == "keyId1"
+        manual.delays == [TimeUnit.MINUTES.toMillis(55)]
+
+        when: "The reload runs"
+        manual.runScheduled()
+
+        then: "The credentials are replaced"
+        provider.credentials.AWSAccessKeyId == "keyId2"
+    }
+
+    def "That credentials without a known expiry are refreshed at the interval"() {
+        given: "A delegate provider and an executor that is stepped manually"
+        def delegate = Mock(AWSCredentialsProvider)
+        def manual = new ManualExecutor()
+
+        when: "A provider is created and the reload runs"
+        def provider = new RefreshingCredentialsProvider(delegate, 10, TimeUnit.MINUTES, manual.executor)
+        manual.runScheduled()
+
+        then: "The credentials are reloaded after the interval"
+        2 * delegate.getCredentials() >>> [new BasicAWSCredentials("keyId1", "accessKey"),
+                                           new BasicAWSCredentials("keyId2", "accessKey")]
+        1 * delegate.refresh()
+        manual.delays == [TimeUnit.MINUTES.toMillis(10), TimeUnit.MINUTES.toMillis(10)]
+        provider.credentials.AWSAccessKeyId == "keyId2"
+    }
+
+    def "That expired credentials are reloaded when needed instead of being returned"() {
+        given: "A provider whose background reload failed"
+        def delegate = new ExpiringProvider(expiresIn: TimeUnit.HOURS.toMillis(1))
+        def manual = new ManualExecutor()
+        def provider = new RefreshingCredentialsProvider(delegate, 120, 5, 15, TimeUnit.MINUTES, manual.executor, delegate.clock)
+        delegate.failing = true
+        manual.runScheduled()
+
+        when: "The credentials expire and are requested while the delegate still fails"
+        delegate.now += TimeUnit.HOURS.toMillis(1)
+        provider.credentials
+
+        then: "The failure is reported"
+        thrown(IllegalStateException)
+
+        when: "The delegate recovers"
+        delegate.failing = false
+        def credentials = provider.credentials
+
+        then: "Fresh credentials are loaded"
+        credentials.AWSAccessKeyId == "keyId2"
+    }
+
+    def "That temporary credentials without a known expiry are only used for the maximum age"() {
+        given: "A delegate handing out temporary credentials without an expiry and a clock"
+        def delegate = Mock(AWSCredentialsProvider)
+        def manual = new ManualExecutor()
+        def now = 0L
+        def clock = [millis: { now }] as Clock
+
+        when: "A provider is created"
+        def provider = new RefreshingCredentialsProvider(delegate, 120, 5, 15, TimeUnit.MINUTES, manual.executor, clock)
+
+        then: "The credentials are loaded and a reload is scheduled a margin before the maximum age"
+        1 * delegate.getCredentials() >> new BasicSessionCredentials("keyId1", "accessKey", "token")
+        manual.delays == [TimeUnit.MINUTES.toMillis(10)]
+
+        when: "The reload fails and the credentials are requested before the maximum age"
+        manual.runScheduled()
+        now = TimeUnit.MINUTES.toMillis(14)
+        def credentials = provider.credentials
+
+        then: "The old credentials are still used"
+        1 * delegate.refresh() >> { throw new IllegalStateException("Metadata service unavailable") }
+        0 * delegate.getCredentials()
+        credentials.AWSAccessKeyId == "keyId1"
+
+        when: "The credentials are requested after the maximum age while the delegate still fails"
+        now = TimeUnit.MINUTES.toMillis(15)
+        provider.credentials
+
+        then: "They are loaded again and the failure is reported instead of handing out the old credentials"
+        1 * delegate.refresh() >> { throw new IllegalStateException("Metadata service unavailable") }
+        thrown(IllegalStateException)
+    }
+
+    def "That a refresh reloads the credentials in the background"() {
+        given: "A delegate provider"
+        def delegate = Mock(AWSCredentialsProvider)
+        def provider = new RefreshingCredentialsProvider(delegate, 1, TimeUnit.HOURS, executor)
+        executor.submit({}).get()
+
+        when: "The credentials are refreshed"
+        provider.refresh()
+        executor.submit({}).get()
+
+        then: "The delegate is reloaded"
+        1 * delegate.refresh()
+        1 * delegate.getCredentials() >> new BasicAWSCredentials("keyId2", "accessKey")
+        provider.credentials.AWSAccessKeyId == "keyId2"
+    }
+
+    def "That credentials from the instance metadata service are refreshed in the background"() {
+        given: "A local stand-in for the instance metadata service that hands out new credentials on each request"
+        def requests = new AtomicInteger()
+        def server = HttpServer.create(new InetSocketAddress(InetAddress.loopbackAddress, 0), 0)
+        server.createContext("/latest/meta-data/iam/security-credentials/") { exchange ->
+            def body
+            if(exchange.requestURI.path.endsWith("/role")) {
+                def n = requests.incrementAndGet()
+                body = """{
+                    "Code": "Success",
+                    "AccessKeyId": "keyId${n}",
+                    "SecretAccessKey": "accessKey${n}",
+                    "Token": "token${n}",
+                    "Expiration": "${Instant.now().plus(6, ChronoUnit.HOURS).truncatedTo(ChronoUnit.SECONDS)}"
+                }"""
+            } else {
+                body = "role"
+            }
+            def bytes = body.getBytes("UTF-8")
+            exchange.sendResponseHeaders(200, bytes.length)
+            exchange.responseBody.withStream { it.write(bytes) }
+        }
+        server.start()
+        System.setProperty(SDKGlobalConfiguration.EC2_METADATA_SERVICE_OVERRIDE_SYSTEM_PROPERTY,
+                "http://localhost:${server.address.port}")
+        def manual = new ManualExecutor()
+        def clock = [millis: { 0L }] as Clock
+
+        when: "A provider is created and credentials are requested twice"
+        def provider = new RefreshingCredentialsProvider(new InstanceProfileCredentialsProvider(false), 120, 5, 15,
+                TimeUnit.MINUTES, manual.executor, clock)
+        def first = provider.credentials
+        def again = provider.credentials
+
+        then: "The credentials were fetched once up front and a reload is scheduled before the maximum age"
+        first.AWSAccessKeyId == "keyId1"
+        again.is first
+        requests.get() == 1
+        manual.delays == [TimeUnit.MINUTES.toMillis(10)]
+
+        when: "The scheduled reload runs"
+        manual.runScheduled()
+        def refreshed = provider.credentials
+
+        then: "The credentials are fetched again and replaced"
+        requests.get() == 2
+        refreshed.AWSAccessKeyId == "keyId2"
+
+        cleanup:
+        System.clearProperty(SDKGlobalConfiguration.EC2_METADATA_SERVICE_OVERRIDE_SYSTEM_PROPERTY)
+        server?.stop(0)
+    }
+
+    /**
+     * Credentials provider that hands out new credentials on each refresh and knows when they expire.
+     */
+    static class ExpiringProvider implements AWSCredentialsProvider {
+        long now = 0
+        long expiresIn
+        boolean failing
+        int loaded
+        Date expiration
+
+        Clock getClock() {
+            return [millis: { now }] as Clock
+        }
+
+        @Override
+        AWSCredentials getCredentials() {
+            if(failing) {
+                throw new IllegalStateException("Metadata service unavailable")
+            }
+            if(expiration == null) {
+                refresh()
+            }
+            return new BasicSessionCredentials("keyId${loaded}", "accessKey", "token")
+        }
+
+        @Override
+        void refresh() {
+            if(failing) {
+                throw new IllegalStateException("Metadata service unavailable")
+            }
+            loaded++
+            expiration = new Date(now + expiresIn)
+        }
+
+        Date getCredentialsExpiration() {
+            return expiration
+        }
+    }
+
+    /**
+     * Runs submitted tasks immediately and scheduled tasks when asked to.
+     */
+    static class ManualExecutor {
+        List<Long> delays = []
+        List<Runnable> scheduled = []
+        ScheduledExecutorService executor = [
+                execute: { Runnable task -> task.run() },
+                schedule: { Runnable task, long delay, TimeUnit unit ->
+                    delays << unit.toMillis(delay)
+                    scheduled << task
+                    return [cancel: { boolean interrupt -> true }] as ScheduledFuture
+                }
+        ] as ScheduledExecutorService
+
+        void runScheduled() {
+            def tasks = new ArrayList<>(scheduled)
+            scheduled.clear()
+            tasks.each { it.run() }
+        }
+    }
+}
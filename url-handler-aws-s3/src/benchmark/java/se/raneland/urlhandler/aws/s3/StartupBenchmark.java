@@ -0,0 +1,89 @@
+package se.raneland.urlhandler.aws.s3;
+
+import se.raneland.urlhandler.PluggableUrlStreamHandlerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures how much registering S3 support adds to the startup time of a JVM.
+ *
+ * Starts a fresh JVM for each run so that class loading is measured as well, and compares registering an eagerly
+ * created {@link S3ProtocolStreamHandlerFactory} with discovering it through
+ * {@link PluggableUrlStreamHandlerFactory#tryInstallDiscovered()}.
+ *
+ * Usage: {@code gradle :url-handler-aws-s3:startupBenchmark [-Pruns=N]}
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class StartupBenchmark {
+
+    private static final String EAGER = "eager";
+    private static final String DISCOVERED = "discovered";
+
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0 && (EAGER.equals(args[0]) || DISCOVERED.equals(args[0]))) {
+            register(args[0]);
+            return;
+        }
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        for(String mode : Arrays.asList(EAGER, DISCOVERED)) {
+            List<Long> registrationTimes = new ArrayList<>();
+            List<Long> processTimes = new ArrayList<>();
+            for(int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                registrationTimes.add(fork(mode));
+                processTimes.add(System.nanoTime() - start);
+            }
+            System.out.printf("%-10s registration: %8.2f ms, process: %8.2f ms (median of %d runs)%n", mode,
+                    median(registrationTimes) / 1e6, median(processTimes) / 1e6, runs);
+        }
+    }
+
+    /**
+     * Register S3 support in this JVM and print how long it took in nanoseconds.
+     */
+    private static void register(String mode) {
+        long start = System.nanoTime();
+        if(EAGER.equals(mode)) {
+            PluggableUrlStreamHandlerFactory.tryInstall(PluggableUrlStreamHandlerFactory.factories(
+                    Collections.singletonList(new S3ProtocolStreamHandlerFactory())));
+        } else {
+            PluggableUrlStreamHandlerFactory.tryInstallDiscovered();
+        }
+        System.out.println(System.nanoTime() - start);
+    }
+
+    private static long fork(String mode) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                StartupBenchmark.class.getName(), mode)
+                .redirectErrorStream(true)
+                .start();
+        String output;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"))) {
+            output = reader.readLine();
+        }
+        if(process.waitFor() != 0 || output == null) {
+            throw new IllegalStateException("Benchmark process failed: " + output);
+        }
+        return Long.parseLong(output.trim());
+    }
+
+    private static double median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        int middle = sorted.size() / 2;
+        if(sorted.size() % 2 == 0) {
+            return (sorted.get(middle - 1) + sorted.get(middle)) / 2.0;
+        }
+        return sorted.get(middle);
+    }
+}
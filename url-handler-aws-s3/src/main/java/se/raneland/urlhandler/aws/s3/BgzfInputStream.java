@@ -0,0 +1,236 @@
+package se.raneland.urlhandler.aws.s3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * {@link InputStream} that decompresses BGZF data, decompressing several blocks in parallel.
+ *
+ * BGZF is gzip split into independently compressed blocks of at most 64 KiB, with the size of each block stored in
+ * its header. This makes it possible to read blocks ahead and decompress them on other threads while the output is
+ * still returned in order.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class BgzfInputStream extends InputStream {
+
+    private static final int HEADER_SIZE = 12;
+    private static final int TRAILER_SIZE = 8;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Check if the start of a stream looks like BGZF.
+     *
+     * @param header The first bytes of the stream, at least 16 bytes are needed
+     * @param length The number of bytes in {@code header}
+     * @return If the stream starts with a BGZF block header
+     */
+    public static boolean isBgzf(byte[] header, int length) {
+        return length >= 16
+                && (header[0] & 0xff) == 31 && (header[1] & 0xff) == 139 && header[2] == 8 && (header[3] & 4) != 0
+                && header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+    }
+
+    private final InputStream in;
+    private final Executor executor;
+    private final int parallelism;
+    private final ArrayDeque<Future<byte[]>> pending;
+
+    private ByteBuffer current;
+    private boolean endOfInput;
+
+    /**
+     * Create a new stream.
+     *
+     * @param in The BGZF data
+     * @param executor The executor to decompress blocks on
+     * @param parallelism The maximum number of blocks to read ahead and decompress at the same time
+     */
+    public BgzfInputStream(InputStream in, Executor executor, int parallelism) {
+        this.in = in;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.pending = new ArrayDeque<>(parallelism);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!ensureAvailable()) {
+            return -1;
+        }
+        return current.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(!ensureAvailable()) {
+            return -1;
+        }
+        len = Math.min(len, current.remaining());
+        current.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public int available() {
+        return current != null ? current.remaining() : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(Future<byte[]> block : pending) {
+            block.cancel(false);
+        }
+        pending.clear();
+        in.close();
+    }
+
+    private boolean ensureAvailable() throws IOException {
+        while(current == null || !current.hasRemaining()) {
+            fill();
+            Future<byte[]> next = pending.poll();
+            if(next == null) {
+                return false;
+            }
+            current = ByteBuffer.wrap(await(next));
+        }
+        // Keep the other threads busy while the caller reads this block
+        fill();
+        return true;
+    }
+
+    private void fill() throws IOException {
+        while(!endOfInput && pending.size() < parallelism) {
+            byte[] block = readBlock();
+            if(block == null) {
+                endOfInput = true;
+            } else {
+                pending.add(CompletableFuture.supplyAsync(() -> inflate(block), executor));
+            }
+        }
+    }
+
+    private static byte[] await(Future<byte[]> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Could not decompress block: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Read the compressed data and trailer of the next block.
+     *
+     * @return The compressed data and trailer or null if there are no more blocks
+     */
+    private byte[] readBlock() throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int read = readFully(header, 0, HEADER_SIZE);
+        if(read == 0) {
+            return null;
+        }
+        if(read < HEADER_SIZE) {
+            throw new EOFException("Truncated BGZF block header");
+        }
+        if((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || header[2] != 8 || (header[3] & 4) == 0) {
+            throw new IOException("Not a BGZF block");
+        }
+        int extraLength = unsignedShort(header, 10);
+        byte[] extra = new byte[extraLength];
+        if(readFully(extra, 0, extraLength) < extraLength) {
+            throw new EOFException("Truncated BGZF block header");
+        }
+        int blockSize = -1;
+        for(int i = 0; i + 4 <= extraLength; i += 4 + unsignedShort(extra, i + 2)) {
+            if(extra[i] == 'B' && extra[i + 1] == 'C' && unsignedShort(extra, i + 2) == 2) {
+                blockSize = unsignedShort(extra, i + 4) + 1;
+            }
+        }
+        int remaining = blockSize - HEADER_SIZE - extraLength;
+        if(blockSize < 0 || remaining < TRAILER_SIZE) {
+            throw new IOException("Not a BGZF block");
+        }
+        byte[] block = new byte[remaining];
+        if(readFully(block, 0, remaining) < remaining) {
+            throw new EOFException("Truncated BGZF block");
+        }
+        return block;
+    }
+
+    private static byte[] inflate(byte[] block) {
+        int dataLength = block.length - TRAILER_SIZE;
+        int size = signedInt(block, dataLength + 4);
+        if(size < 0 || size > MAX_BLOCK_SIZE) {
+            throw new CompletionException(new IOException("Invalid BGZF block size: " + size));
+        }
+        byte[] output = new byte[size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(block, 0, dataLength);
+            int inflated = 0;
+            while(inflated < size && !inflater.finished()) {
+                int n = inflater.inflate(output, inflated, size - inflated);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if(inflated != size) {
+                throw new CompletionException(new IOException("Corrupt BGZF block"));
+            }
+        } catch (DataFormatException e) {
+            throw new CompletionException(new IOException("Corrupt BGZF block: " + e.getMessage(), e));
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(output, 0, size);
+        if((int) crc.getValue() != signedInt(block, dataLength)) {
+            throw new CompletionException(new IOException("BGZF block checksum mismatch"));
+        }
+        return output;
+    }
+
+    private int readFully(byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while(total < length) {
+            int read = in.read(buffer, offset + total, length - total);
+            if(read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static int unsignedShort(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8;
+    }
+
+    private static int signedInt(byte[] buffer, int offset) {
+        return unsignedShort(buffer, offset) | unsignedShort(buffer, offset + 2) << 16;
+    }
+}
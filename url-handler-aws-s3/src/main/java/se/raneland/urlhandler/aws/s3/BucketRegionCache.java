@@ -0,0 +1,172 @@
+package se.raneland.urlhandler.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3;
+import se.raneland.urlhandler.aws.AwsClientFactory;
+import se.raneland.urlhandler.aws.ClientCreationException;
+import se.raneland.urlhandler.aws.ClientOptions;
+
+import java.time.Clock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of discovered bucket regions.
+ *
+ * Looks up the region of a bucket once using {@link AmazonS3#getBucketLocation(String)} and remembers it so that
+ * subsequent connections can go straight to a client for the correct region instead of being redirected.
+ *
+ * Buckets can't move between regions without being deleted and recreated, so regions are cached for a long time.
+ * Failed lookups are cached for a much shorter time to avoid retrying the lookup on every connection.
+ *
+ * Only one lookup is made at a time for each bucket, concurrent requests for the same bucket wait for it. Lookups
+ * of different buckets don't wait for each other.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class BucketRegionCache {
+
+    public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(24);
+    public static final long DEFAULT_FAILURE_TTL = TimeUnit.MINUTES.toMillis(1);
+
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> regions;
+    private final long ttl;
+    private final long failureTtl;
+    private final Clock clock;
+
+    public BucketRegionCache() {
+        this(DEFAULT_TTL, DEFAULT_FAILURE_TTL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a new cache.
+     *
+     * @param ttl For how long a discovered region is cached
+     * @param failureTtl For how long a failed lookup is cached
+     * @param unit The unit of {@code ttl} and {@code failureTtl}
+     */
+    public BucketRegionCache(long ttl, long failureTtl, TimeUnit unit) {
+        this(ttl, failureTtl, unit, Clock.systemUTC());
+    }
+
+    BucketRegionCache(long ttl, long failureTtl, TimeUnit unit, Clock clock) {
+        this.regions = new ConcurrentHashMap<>();
+        this.ttl = unit.toMillis(ttl);
+        this.failureTtl = unit.toMillis(failureTtl);
+        this.clock = clock;
+    }
+
+    /**
+     * Get the region of a bucket, discovering it if it isn't cached.
+     *
+     * A client is only retrieved from the client factory if the region has to be discovered.
+     *
+     * @param bucketName The name of the bucket
+     * @param clientFactory The factory to retrieve the client used for discovering the region from
+     * @param options The options to retrieve the client used for discovering the region with
+     * @return The region of the bucket or null if it couldn't be discovered
+     * @throws ClientCreationException If the region has to be discovered and no client can be created
+     */
+    public Region getRegion(String bucketName, AwsClientFactory<? extends AmazonS3> clientFactory,
+                            ClientOptions options) throws ClientCreationException {
+        long now = clock.millis();
+        while(true) {
+            CompletableFuture<Entry> lookup = regions.get(bucketName);
+            if(lookup == null) {
+                // Connections opened at the same time all wait for a single lookup instead of making one each. The
+                // lookup is made outside of the map so that it doesn't block lookups of other buckets
+                CompletableFuture<Entry> created = new CompletableFuture<>();
+                lookup = regions.computeIfAbsent(bucketName, name -> created);
+                if(lookup == created) {
+                    lookup(bucketName, clientFactory, options, now, created);
+                }
+            }
+            Entry entry = await(lookup);
+            if(entry.expires > now) {
+                return entry.region;
+            }
+            regions.remove(bucketName, lookup);
+        }
+    }
+
+    /**
+     * Forget the cached region of a bucket.
+     *
+     * @param bucketName The name of the bucket
+     */
+    public void invalidate(String bucketName) {
+        regions.remove(bucketName);
+    }
+
+    private void lookup(String bucketName, AwsClientFactory<? extends AmazonS3> clientFactory, ClientOptions options,
+                        long now, CompletableFuture<Entry> lookup) throws ClientCreationException {
+        try {
+            lookup.complete(discover(bucketName, clientFactory.create(options), now));
+        } catch(ClientCreationException | RuntimeException e) {
+            // Don't cache the failure, the next connection tries again
+            regions.remove(bucketName, lookup);
+            lookup.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static Entry await(CompletableFuture<Entry> lookup) throws ClientCreationException {
+        try {
+            return lookup.join();
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof ClientCreationException) {
+                throw new ClientCreationException(e.getCause().getMessage(), e.getCause());
+            }
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private Entry discover(String bucketName, AmazonS3 s3, long now) {
+        try {
+            Region region = toRegion(s3.getBucketLocation(bucketName));
+            if(region != null) {
+                return new Entry(region, now + ttl);
+            }
+        } catch(AmazonClientException e) {
+            // We're not allowed to look up the location or the bucket doesn't exist, fall through
+        }
+        return new Entry(null, now + failureTtl);
+    }
+
+    /**
+     * Translate a bucket location constraint to a region.
+     *
+     * S3 reports buckets in us-east-1 as either an empty location or "US" and some old buckets in eu-west-1 as "EU".
+     *
+     * @param location The location constraint
+     * @return The region or null if the location is unknown
+     */
+    static Region toRegion(String location) {
+        if(location == null || location.isEmpty() || "US".equals(location)) {
+            return Region.getRegion(Regions.US_EAST_1);
+        }
+        if("EU".equals(location)) {
+            return Region.getRegion(Regions.EU_WEST_1);
+        }
+        return RegionUtils.getRegion(location);
+    }
+
+    private static class Entry {
+        private final Region region;
+        private final long expires;
+
+        private Entry(Region region, long expires) {
+            this.region = region;
+            this.expires = expires;
+        }
+    }
+}
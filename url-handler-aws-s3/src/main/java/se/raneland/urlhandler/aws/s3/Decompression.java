@@ -0,0 +1,119 @@
+package se.raneland.urlhandler.aws.s3;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Transparent decompression of compressed objects.
+ *
+ * The compression is detected from the content encoding or, if there is none, from the file extension. Supported
+ * formats are:
+ * <ul>
+ *     <li>BGZF, decompressed in parallel by {@link BgzfInputStream}</li>
+ *     <li>gzip, decompressed on the reading thread while the data is read ahead on another thread</li>
+ *     <li>zstd, with frames decompressed in parallel by {@link ZstdFramesInputStream}. Requires
+ *     {@code io.airlift:aircompressor} on the classpath</li>
+ * </ul>
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public final class Decompression {
+
+    public static final String GZIP = "gzip";
+    public static final String ZSTD = "zstd";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 16;
+    private static final boolean ZSTD_AVAILABLE = isAvailable("io.airlift.compress.zstd.ZstdDecompressor");
+
+    private Decompression() {
+    }
+
+    /**
+     * Detect the compression of some data.
+     *
+     * @param contentEncoding The content encoding of the data, may be null
+     * @param name The name of the data, e.g. the key of an S3 object, may be null
+     * @return The compression, i.e. {@link #GZIP} or {@link #ZSTD}, or null if the data isn't compressed in a supported format
+     */
+    public static String detect(String contentEncoding, String name) {
+        if(contentEncoding != null && !contentEncoding.isEmpty()) {
+            String encoding = contentEncoding.trim().toLowerCase();
+            if(GZIP.equals(encoding) || "x-gzip".equals(encoding)) {
+                return GZIP;
+            }
+            if(ZSTD.equals(encoding)) {
+                return ZSTD;
+            }
+            return null;
+        }
+        if(name != null) {
+            String lowerCaseName = name.toLowerCase();
+            if(lowerCaseName.endsWith(".gz") || lowerCaseName.endsWith(".bgz") || lowerCaseName.endsWith(".bgzf")) {
+                return GZIP;
+            }
+            if(lowerCaseName.endsWith(".zst")) {
+                return ZSTD;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wrap a stream of compressed data in a stream that decompresses it.
+     *
+     * @param in The compressed data
+     * @param compression The compression as returned by {@link #detect(String, String)}
+     * @return A stream of decompressed data or {@code in} if {@code compression} is null
+     * @throws IOException If the start of the data can't be read or the decoder for the compression is missing
+     */
+    public static InputStream decompress(InputStream in, String compression) throws IOException {
+        if(ZSTD.equals(compression)) {
+            if(!ZSTD_AVAILABLE) {
+                in.close();
+                throw new IOException("Decompressing zstd requires io.airlift:aircompressor on the classpath");
+            }
+            return new ZstdFramesInputStream(new BufferedInputStream(new ReadAheadInputStream(in), BUFFER_SIZE),
+                    ForkJoinPool.commonPool(), Runtime.getRuntime().availableProcessors() * 2);
+        }
+        if(!GZIP.equals(compression)) {
+            return in;
+        }
+        BufferedInputStream buffered = new BufferedInputStream(new ReadAheadInputStream(in), BUFFER_SIZE);
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            buffered.mark(HEADER_SIZE);
+            int length = 0;
+            int read;
+            while(length < HEADER_SIZE && (read = buffered.read(header, length, HEADER_SIZE - length)) >= 0) {
+                length += read;
+            }
+            buffered.reset();
+            if(BgzfInputStream.isBgzf(header, length)) {
+                return new BgzfInputStream(buffered, ForkJoinPool.commonPool(), Runtime.getRuntime().availableProcessors() * 2);
+            }
+            return new GZIPInputStream(buffered, BUFFER_SIZE);
+        } catch (IOException | RuntimeException e) {
+            // Stop reading ahead and release the connection, e.g. if the object isn't really gzipped
+            try {
+                buffered.close();
+            } catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isAvailable(String className) {
+        try {
+            Class.forName(className, false, Decompression.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package se.raneland.urlhandler.aws.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link InputStream} that reads another stream ahead on a separate thread.
+ *
+ * Lets the reader of the stream, e.g. a decompressor, work at the same time as data is being read from the network
+ * instead of alternating between the two.
+ *
+ * Streams read ahead on a bounded pool of daemon threads. If all threads are busy the stream is read on the calling
+ * thread instead, without reading ahead.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int DEFAULT_CHUNKS = 16;
+    public static final int MAX_READERS = Math.max(4, Runtime.getRuntime().availableProcessors() * 4);
+
+    private static final Object END_OF_STREAM = new Object();
+
+    private static final ExecutorService DEFAULT_EXECUTOR = new ThreadPoolExecutor(0, MAX_READERS,
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final InputStream in;
+    private final int chunkSize;
+    private final BlockingQueue<Object> chunks;
+    private final Future<?> reader;
+
+    private ByteBuffer current;
+    private boolean endOfStream;
+    private volatile boolean closed;
+
+    public ReadAheadInputStream(InputStream in) {
+        this(in, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS);
+    }
+
+    public ReadAheadInputStream(InputStream in, int chunkSize, int chunks) {
+        this(in, chunkSize, chunks, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * Create a new stream and start reading ahead.
+     *
+     * @param in The stream to read
+     * @param chunkSize The maximum number of bytes to read at a time
+     * @param chunks The maximum number of chunks to read ahead
+     * @param executor The executor to read ahead on
+     */
+    public ReadAheadInputStream(InputStream in, int chunkSize, int chunks, ExecutorService executor) {
+        this.in = in;
+        this.chunkSize = chunkSize;
+        this.chunks = new ArrayBlockingQueue<>(chunks);
+        Future<?> submitted;
+        try {
+            submitted = executor.submit(this::readAhead);
+        } catch (RejectedExecutionException e) {
+            // Too many streams are being read ahead already, read this one directly
+            submitted = null;
+        }
+        this.reader = submitted;
+    }
+
+    /**
+     * Check if the stream is read ahead on another thread or read directly on the calling thread.
+     *
+     * @return If the stream is read ahead
+     */
+    public boolean isReadingAhead() {
+        return reader != null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(reader == null) {
+            return in.read();
+        }
+        if(!ensureAvailable()) {
+            return -1;
+        }
+        return current.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(reader == null) {
+            return in.read(b, off, len);
+        }
+        if(len == 0) {
+            return 0;
+        }
+        if(!ensureAvailable()) {
+            return -1;
+        }
+        len = Math.min(len, current.remaining());
+        current.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if(reader == null) {
+            return in.available();
+        }
+        return current != null ? current.remaining() : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if(reader != null) {
+            reader.cancel(true);
+        }
+        in.close();
+    }
+
+    private boolean ensureAvailable() throws IOException {
+        while(current == null || !current.hasRemaining()) {
+            if(endOfStream) {
+                return false;
+            }
+            Object chunk;
+            try {
+                chunk = chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for data");
+            }
+            if(chunk == END_OF_STREAM) {
+                endOfStream = true;
+            } else if(chunk instanceof Error) {
+                endOfStream = true;
+                throw (Error) chunk;
+            } else if(chunk instanceof Throwable) {
+                endOfStream = true;
+                Throwable failure = (Throwable) chunk;
+                throw new IOException(failure.getMessage(), failure);
+            } else {
+                current = (ByteBuffer) chunk;
+            }
+        }
+        return true;
+    }
+
+    private void readAhead() {
+        try {
+            try {
+                while(!closed) {
+                    byte[] buffer = new byte[chunkSize];
+                    int read = in.read(buffer);
+                    if(read < 0) {
+                        break;
+                    }
+                    chunks.put(ByteBuffer.wrap(buffer, 0, read));
+                }
+                chunks.put(END_OF_STREAM);
+            } catch (IOException | RuntimeException | Error e) {
+                // The SDK reports e.g. truncated downloads and checksum mismatches with unchecked exceptions
+                if(!closed) {
+                    chunks.put(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+}
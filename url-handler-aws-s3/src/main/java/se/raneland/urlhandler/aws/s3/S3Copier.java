@@ -0,0 +1,240 @@
+package se.raneland.urlhandler.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import se.raneland.urlhandler.aws.AwsClientFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copies data between URLs, letting S3 do the copying when both URLs are S3 URLs.
+ *
+ * Objects up to the multipart threshold are copied with a single copy request. Larger objects, S3 can copy at
+ * most 5 GB in a single request, are copied in parts in parallel with a multipart upload.
+ *
+ * The source object must not change during the copy, the copy fails if it does.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class S3Copier {
+
+    public static final long MAX_SINGLE_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+    public static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    public static final long DEFAULT_PART_SIZE = 512L * 1024 * 1024;
+    public static final int MAX_PARTS = 10000;
+    public static final int DEFAULT_CONCURRENCY = 10;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AwsClientFactory<? extends AmazonS3> clientFactory;
+    private final BucketRegionCache regionCache;
+    private final long multipartThreshold;
+    private final long partSize;
+    private final int concurrency;
+
+    public S3Copier(AwsClientFactory<? extends AmazonS3> clientFactory, BucketRegionCache regionCache) {
+        this(clientFactory, regionCache, MAX_SINGLE_COPY_SIZE, DEFAULT_PART_SIZE, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Create a new copier.
+     *
+     * @param clientFactory The factory to retrieve {@link AmazonS3} clients from
+     * @param regionCache Cache used to discover the region of buckets without an explicit region,
+     *                    or null to disable discovery
+     * @param multipartThreshold Objects larger than this are copied in parts, at most 5 GB
+     * @param partSize The size of each part, increased if needed to stay within the maximum number of parts
+     * @param concurrency The maximum number of parts to copy at the same time
+     */
+    public S3Copier(AwsClientFactory<? extends AmazonS3> clientFactory, BucketRegionCache regionCache,
+                    long multipartThreshold, long partSize, int concurrency) {
+        if(multipartThreshold > MAX_SINGLE_COPY_SIZE) {
+            throw new IllegalArgumentException("Multipart threshold may not be larger than " + MAX_SINGLE_COPY_SIZE);
+        }
+        if(partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size may not be smaller than " + MIN_PART_SIZE);
+        }
+        if(concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be positive");
+        }
+        this.clientFactory = clientFactory;
+        this.regionCache = regionCache;
+        this.multipartThreshold = multipartThreshold;
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Check if a URL is an S3 URL.
+     *
+     * @param url The URL to check
+     * @return If the URL is an S3 URL
+     */
+    public static boolean isS3(URL url) {
+        return "s3".equalsIgnoreCase(url.getProtocol());
+    }
+
+    /**
+     * Copy the data at one URL to another.
+     *
+     * If both URLs are S3 URLs the data is copied by S3 and never passes through this JVM. If only the source is an
+     * S3 URL the data is streamed from the source to the output stream of the destination. S3 URLs can't be written
+     * to, so an S3 destination requires an S3 source.
+     *
+     * @param source The URL to copy from
+     * @param destination The URL to copy to
+     * @throws IOException If the copy fails
+     * @throws IllegalArgumentException If the destination is an S3 URL but the source isn't
+     */
+    public void copy(URL source, URL destination) throws IOException {
+        if(isS3(source) && isS3(destination)) {
+            copyS3(source, destination);
+        } else if(isS3(destination)) {
+            throw new IllegalArgumentException("Can't copy " + source + " to " + destination
+                    + ", only S3 URLs can be copied to S3 URLs");
+        } else {
+            copyStream(source, destination);
+        }
+    }
+
+    private void copyS3(URL source, URL destination) throws IOException {
+        S3UrlConnection sourceConnection = new S3UrlConnection(clientFactory, regionCache, source);
+        S3UrlConnection destinationConnection = new S3UrlConnection(clientFactory, regionCache, destination);
+        try {
+            sourceConnection.connect();
+            // Copy requests are sent to the region of the destination
+            AmazonS3 s3 = destinationConnection.createClient();
+            if (sourceConnection.getMetadata().getContentLength() > multipartThreshold) {
+                copyMultipart(s3, sourceConnection, destinationConnection);
+            } else {
+                copySingle(s3, sourceConnection, destinationConnection);
+            }
+        } catch(AmazonClientException e) {
+            throw new IOException("Could not copy " + source + " to " + destination + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void copySingle(AmazonS3 s3, S3UrlConnection source, S3UrlConnection destination) throws IOException {
+        CopyObjectRequest request = new CopyObjectRequest(source.getBucketName(), source.getKeyName(),
+                destination.getBucketName(), destination.getKeyName())
+                .withMatchingETagConstraint(source.getMetadata().getETag());
+        if(s3.copyObject(request) == null) {
+            throw new IOException(source.getURL() + " changed during copy");
+        }
+    }
+
+    private void copyMultipart(AmazonS3 s3, S3UrlConnection source, S3UrlConnection destination) throws IOException {
+        long size = source.getMetadata().getContentLength();
+        // Parts may not be smaller than the configured size but there may not be too many of them either
+        long actualPartSize = Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+        int parts = (int) ((size + actualPartSize - 1) / actualPartSize);
+        String eTag = source.getMetadata().getETag();
+
+        String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(destination.getBucketName(),
+                destination.getKeyName(), copyMetadata(source.getMetadata()))).getUploadId();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, parts));
+        try {
+            List<Future<CopyPartResult>> results = new ArrayList<>(parts);
+            for(int part = 0; part < parts; part++) {
+                long firstByte = part * actualPartSize;
+                CopyPartRequest request = new CopyPartRequest()
+                        .withSourceBucketName(source.getBucketName())
+                        .withSourceKey(source.getKeyName())
+                        .withDestinationBucketName(destination.getBucketName())
+                        .withDestinationKey(destination.getKeyName())
+                        .withUploadId(uploadId)
+                        .withPartNumber(part + 1)
+                        .withFirstByte(firstByte)
+                        .withLastByte(Math.min(firstByte + actualPartSize, size) - 1)
+                        .withMatchingETagConstraint(eTag);
+                results.add(executor.submit(() -> s3.copyPart(request)));
+            }
+            List<PartETag> eTags = new ArrayList<>(parts);
+            for(Future<CopyPartResult> result : results) {
+                CopyPartResult partResult = result.get();
+                if(partResult == null) {
+                    throw new IOException(source.getURL() + " changed during copy");
+                }
+                eTags.add(partResult.getPartETag());
+            }
+            eTags.sort(Comparator.comparingInt(PartETag::getPartNumber));
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(destination.getBucketName(),
+                    destination.getKeyName(), uploadId, eTags));
+        } catch(IOException | RuntimeException | InterruptedException | ExecutionException e) {
+            executor.shutdownNow();
+            abort(s3, destination, uploadId);
+            if(e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            if(e instanceof IOException) {
+                throw (IOException) e;
+            }
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            throw new IOException("Could not copy " + source.getURL() + " to " + destination.getURL() + ": "
+                    + cause.getMessage(), cause);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void abort(AmazonS3 s3, S3UrlConnection destination, String uploadId) {
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(destination.getBucketName(),
+                    destination.getKeyName(), uploadId));
+        } catch(AmazonClientException e) {
+            // Nothing more we can do, the original error is more interesting
+        }
+    }
+
+    /**
+     * Create the metadata of the destination of a multipart copy.
+     *
+     * Unlike single copies, multipart copies don't copy the metadata of the source.
+     *
+     * @param source The metadata of the source object
+     * @return The metadata to use for the destination object
+     */
+    private static ObjectMetadata copyMetadata(ObjectMetadata source) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(source.getContentType());
+        metadata.setContentEncoding(source.getContentEncoding());
+        metadata.setContentDisposition(source.getContentDisposition());
+        metadata.setContentLanguage(source.getContentLanguage());
+        metadata.setCacheControl(source.getCacheControl());
+        metadata.setHttpExpiresDate(source.getHttpExpiresDate());
+        metadata.setUserMetadata(source.getUserMetadata());
+        return metadata;
+    }
+
+    private void copyStream(URL source, URL destination) throws IOException {
+        URLConnection destinationConnection = destination.openConnection();
+        destinationConnection.setDoOutput(true);
+        try (InputStream in = source.openStream(); OutputStream out = destinationConnection.getOutputStream()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+}
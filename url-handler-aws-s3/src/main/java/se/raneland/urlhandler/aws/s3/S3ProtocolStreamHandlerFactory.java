@@ -13,13 +13,19 @@ import java.net.URLStreamHandler;
  */
 public class S3ProtocolStreamHandlerFactory implements ProtocolStreamHandlerFactory {
     private final AwsClientFactory<? extends AmazonS3> clientFactory;
+    private final BucketRegionCache regionCache;
 
     public S3ProtocolStreamHandlerFactory() {
         this(new DefaultAwsClientFactory<>(AmazonS3Client.class));
     }
 
     public S3ProtocolStreamHandlerFactory(AwsClientFactory<? extends AmazonS3> clientFactory) {
+        this(clientFactory, new BucketRegionCache());
+    }
+
+    public S3ProtocolStreamHandlerFactory(AwsClientFactory<? extends AmazonS3> clientFactory, BucketRegionCache regionCache) {
         this.clientFactory = clientFactory;
+        this.regionCache = regionCache;
     }
 
     @Override
@@ -29,6 +35,15 @@ public class S3ProtocolStreamHandlerFactory implements ProtocolStreamHandlerFact
 
     @Override
     public URLStreamHandler createStreamHandler(String protocol) {
-        return new S3UrlStreamHandler(clientFactory);
+        return new S3UrlStreamHandler(clientFactory, regionCache);
+    }
+
+    /**
+     * Create a {@link S3Copier} that shares clients and discovered regions with the stream handlers of this factory.
+     *
+     * @return A new copier
+     */
+    public S3Copier createCopier() {
+        return new S3Copier(clientFactory, regionCache);
     }
 }
@@ -3,8 +3,19 @@ package se.raneland.urlhandler.aws.s3;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CSVInput;
+import com.amazonaws.services.s3.model.CSVOutput;
+import com.amazonaws.services.s3.model.CompressionType;
+import com.amazonaws.services.s3.model.ExpressionType;
+import com.amazonaws.services.s3.model.InputSerialization;
+import com.amazonaws.services.s3.model.JSONInput;
+import com.amazonaws.services.s3.model.JSONOutput;
+import com.amazonaws.services.s3.model.JSONType;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.OutputSerialization;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.SelectObjectContentRequest;
+import com.amazonaws.services.s3.model.SelectObjectContentResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import se.raneland.urlhandler.aws.AwsClientFactory;
@@ -13,8 +24,11 @@ import se.raneland.urlhandler.aws.ClientOptions;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 
@@ -24,6 +38,20 @@ import java.util.*;
  * Fetches the {@link ObjectMetadata} when connecting and the {@link S3Object}
  * when calling {@link URLConnection#getInputStream()}.
  *
+ * Supports the following URL query parameters:
+ * <ul>
+ *     <li>{@code decompress} - decompress the object, see {@link #setDecompress(boolean)}</li>
+ *     <li>{@code select} - an S3 Select SQL expression to filter the object with</li>
+ *     <li>{@code input} - the format of the object when selecting, {@code csv} (default), {@code json} or
+ *     {@code lines} for JSON lines</li>
+ *     <li>{@code output} - the format of the selected records, {@code csv} or {@code json}, defaults to the
+ *     format of the object</li>
+ *     <li>{@code header} - how to treat the first line of CSV objects, {@code none} (default), {@code use} or
+ *     {@code ignore}</li>
+ *     <li>{@code delimiter} - the field delimiter of CSV objects and records, defaults to a comma</li>
+ * </ul>
+ * The select options can also be set as request properties, which take precedence over query parameters.
+ *
  * @author Raniz
  * @since 1.0
  */
@@ -41,34 +69,189 @@ public class S3UrlConnection extends URLConnection {
             + "))?$");
 
     // Format dates according to the HTTP spec
-    public static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.RFC_1123_DATE_TIME;
+    public static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
 
     private final AwsClientFactory<? extends AmazonS3> clientFactory;
+    private final BucketRegionCache regionCache;
     private final String bucketName;
     private final String keyName;
+    private final Map<String, String> parameters;
 
     private AmazonS3 s3;
     private ObjectMetadata metadata;
+    private boolean decompress;
 
     public S3UrlConnection(AwsClientFactory<? extends AmazonS3> clientFactory, URL url) throws ClientCreationException {
+        this(clientFactory, null, url);
+    }
+
+    /**
+     * Create a new connection.
+     *
+     * @param clientFactory The factory to retrieve {@link AmazonS3} clients from
+     * @param regionCache Cache used to discover the region of buckets without an explicit region,
+     *                    or null to disable discovery
+     * @param url The URL to connect to
+     */
+    public S3UrlConnection(AwsClientFactory<? extends AmazonS3> clientFactory, BucketRegionCache regionCache, URL url) throws ClientCreationException {
         super(url);
         this.clientFactory = clientFactory;
+        this.regionCache = regionCache;
         Matcher matcher = BUCKET_REGION_PATTERN.matcher(url.getHost());
         if(!matcher.matches()) {
             throw new IllegalArgumentException("Invalid bucket name: " + url.getHost());
         }
         this.bucketName = matcher.group(1);
         this.keyName = url.getPath().replaceAll("^/+", "");
+        this.parameters = parseQuery(url.getQuery());
+        this.decompress = isEnabled(parameters.get("decompress"));
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if(query == null || query.isEmpty()) {
+            return parameters;
+        }
+        for(String parameter : query.split("&")) {
+            String[] parts = parameter.split("=", 2);
+            try {
+                parameters.put(URLDecoder.decode(parts[0], "UTF-8"), parts.length > 1 ? URLDecoder.decode(parts[1], "UTF-8") : "");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("UTF-8 is not supported", e);
+            }
+        }
+        return parameters;
+    }
+
+    private static boolean isEnabled(String parameter) {
+        return parameter != null && (parameter.isEmpty() || Boolean.parseBoolean(parameter));
     }
 
     @Override
     public void connect() throws IOException {
-        ClientOptions options = createClientOptions();
-        this.s3 = clientFactory.create(options);
+        this.s3 = createClient();
         // TODO: Exception translation
         this.metadata = s3.getObjectMetadata(bucketName, keyName);
     }
 
+    /**
+     * Retrieve the {@link AmazonS3} client for the bucket from the {@link AwsClientFactory}, discovering the region of
+     * the bucket if it isn't part of the URL.
+     *
+     * @return A client for the bucket
+     * @throws ClientCreationException If no client can be created
+     */
+    AmazonS3 createClient() throws ClientCreationException {
+        ClientOptions options = createClientOptions();
+        if(regionCache != null && options.getRegion() == null && options.getEndpoint() == null) {
+            Region region = regionCache.getRegion(bucketName, clientFactory, options);
+            if(region != null) {
+                // Options are used as cache keys by the client factory so don't modify the ones we've already used
+                options = createClientOptions();
+                options.setRegion(region);
+            }
+        }
+        return clientFactory.create(options);
+    }
+
+    public String getBucketName() {
+        return bucketName;
+    }
+
+    public String getKeyName() {
+        return keyName;
+    }
+
+    /**
+     * Get the value of a URL query parameter.
+     *
+     * @param name The name of the parameter
+     * @return The value of the parameter, an empty string if it has no value or null if it isn't set
+     */
+    public String getParameter(String name) {
+        return parameters.get(name);
+    }
+
+    /**
+     * Get an option from the request properties, falling back to the URL query parameters.
+     *
+     * @param name The name of the option
+     * @return The value of the option or null if it isn't set
+     */
+    private String getOption(String name) {
+        String value = getRequestProperty(name);
+        return value != null ? value : parameters.get(name);
+    }
+
+    /**
+     * Get the S3 Select expression to filter the object with.
+     *
+     * @return The expression or null if the whole object should be returned
+     */
+    public String getSelectExpression() {
+        String expression = getOption("select");
+        return expression != null && !expression.isEmpty() ? expression : null;
+    }
+
+    public boolean isDecompress() {
+        return decompress;
+    }
+
+    /**
+     * Decompress objects that are compressed in a supported format.
+     *
+     * The compression is detected from the content encoding or the file extension of the key,
+     * see {@link Decompression}. When an object is decompressed the content length is unknown and
+     * {@link #getContentEncoding()} returns null, other headers still describe the stored object.
+     *
+     * Can also be enabled with the {@code decompress} URL query parameter.
+     *
+     * @param decompress If objects should be decompressed
+     */
+    public void setDecompress(boolean decompress) {
+        this.decompress = decompress;
+    }
+
+    /**
+     * Get the compression that will be removed from the object.
+     *
+     * @return The compression or null if the object won't be decompressed
+     */
+    private String getCompression() {
+        if(!decompress || getSelectExpression() != null) {
+            return null;
+        }
+        return Decompression.detect(metadata.getContentEncoding(), keyName);
+    }
+
+    /**
+     * Check if the content returned by this connection differs from the stored object, i.e. if it's decompressed or
+     * filtered by a select expression, in which case the stored encoding and length don't apply.
+     *
+     * @return If the content is transformed
+     */
+    private boolean isTransformed() {
+        return getCompression() != null || getSelectExpression() != null;
+    }
+
+    /**
+     * Get the client used by this connection.
+     *
+     * @return The client or null if not connected
+     */
+    AmazonS3 getClient() {
+        return s3;
+    }
+
+    /**
+     * Get the metadata of the object.
+     *
+     * @return The metadata or null if not connected
+     */
+    ObjectMetadata getMetadata() {
+        return metadata;
+    }
+
     /**
      * Create the {@link ClientOptions} that should be use to retrieve the {@link AmazonS3} client from the {@link AwsClientFactory}.
      *
@@ -99,6 +282,9 @@ public class S3UrlConnection extends URLConnection {
 
     @Override
     public long getContentLengthLong() {
+        if(isTransformed()) {
+            return -1;
+        }
         return metadata.getContentLength();
     }
 
@@ -109,6 +295,9 @@ public class S3UrlConnection extends URLConnection {
 
     @Override
     public String getContentEncoding() {
+        if(isTransformed()) {
+            return null;
+        }
         return metadata.getContentEncoding();
     }
 
@@ -139,9 +328,9 @@ public class S3UrlConnection extends URLConnection {
             case "content-disposition":
                 return metadata.getContentDisposition();
             case "content-encoding":
-                return metadata.getContentEncoding();
+                return isTransformed() ? null : metadata.getContentEncoding();
             case "content-length":
-                return String.valueOf(metadata.getContentLength());
+                return isTransformed() ? null : String.valueOf(metadata.getContentLength());
             case "content-md5":
                 return metadata.getContentMD5();
             case "content-type":
@@ -176,8 +365,11 @@ public class S3UrlConnection extends URLConnection {
         // Add standard headers
         headers.put("Cache-Control", Collections.singletonList(metadata.getCacheControl()));
         headers.put("Content-Disposition", Collections.singletonList(metadata.getContentDisposition()));
-        headers.put("Content-Encoding", Collections.singletonList(metadata.getContentEncoding()));
-        headers.put("Content-Length", Collections.singletonList(String.valueOf(metadata.getContentLength())));
+        if(!isTransformed()) {
+            // Decompressed or selected content has neither an encoding nor a known length
+            headers.put("Content-Encoding", Collections.singletonList(metadata.getContentEncoding()));
+            headers.put("Content-Length", Collections.singletonList(String.valueOf(metadata.getContentLength())));
+        }
         headers.put("Content-MD5", Collections.singletonList(metadata.getContentMD5()));
         headers.put("Content-Type", Collections.singletonList(metadata.getContentType()));
         headers.put("ETag", Collections.singletonList(metadata.getETag()));
@@ -189,7 +381,72 @@ public class S3UrlConnection extends URLConnection {
 
     @Override
     public InputStream getInputStream() throws IOException {
+        String expression = getSelectExpression();
+        if(expression != null) {
+            SelectObjectContentResult result = s3.selectObjectContent(createSelectRequest(expression));
+            return result.getPayload().getRecordsInputStream();
+        }
         final S3Object object = s3.getObject(bucketName, keyName);
-        return new S3ObjectInputStream(object);
+        return Decompression.decompress(new S3ObjectInputStream(object), getCompression());
+    }
+
+    /**
+     * Create the {@link SelectObjectContentRequest} used to filter the object.
+     *
+     * Compressed objects are detected the same way as when decompressing, see {@link Decompression}.
+     *
+     * @param expression The SQL expression to filter with
+     * @return The request
+     */
+    protected SelectObjectContentRequest createSelectRequest(String expression) {
+        String input = getOption("input") != null ? getOption("input").toLowerCase() : "csv";
+        String delimiter = getOption("delimiter");
+        InputSerialization inputSerialization = new InputSerialization();
+        switch(input) {
+            case "csv":
+                CSVInput csv = new CSVInput()
+                        .withFileHeaderInfo(getOption("header") != null ? getOption("header").toUpperCase() : "NONE");
+                if(delimiter != null) {
+                    csv.setFieldDelimiter(delimiter);
+                }
+                inputSerialization.setCsv(csv);
+                break;
+            case "json":
+                inputSerialization.setJson(new JSONInput().withType(JSONType.DOCUMENT));
+                break;
+            case "lines":
+                inputSerialization.setJson(new JSONInput().withType(JSONType.LINES));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported select input format: " + input);
+        }
+        if(Decompression.GZIP.equals(Decompression.detect(metadata.getContentEncoding(), keyName))) {
+            inputSerialization.setCompressionType(CompressionType.GZIP);
+        }
+
+        String output = getOption("output") != null ? getOption("output").toLowerCase() : ("csv".equals(input) ? "csv" : "json");
+        OutputSerialization outputSerialization = new OutputSerialization();
+        switch(output) {
+            case "csv":
+                CSVOutput csv = new CSVOutput();
+                if(delimiter != null) {
+                    csv.setFieldDelimiter(delimiter);
+                }
+                outputSerialization.setCsv(csv);
+                break;
+            case "json":
+                outputSerialization.setJson(new JSONOutput());
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported select output format: " + output);
+        }
+
+        return new SelectObjectContentRequest()
+                .withBucketName(bucketName)
+                .withKey(keyName)
+                .withExpression(expression)
+                .withExpressionType(ExpressionType.SQL)
+                .withInputSerialization(inputSerialization)
+                .withOutputSerialization(outputSerialization);
     }
 }
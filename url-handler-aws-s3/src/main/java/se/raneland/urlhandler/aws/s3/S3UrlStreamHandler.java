@@ -14,14 +14,20 @@ import java.net.URLStreamHandler;
 public class S3UrlStreamHandler extends URLStreamHandler {
 
     private final AwsClientFactory<? extends AmazonS3> clientFactory;
+    private final BucketRegionCache regionCache;
 
     public S3UrlStreamHandler(AwsClientFactory<? extends AmazonS3> clientFactory) {
+        this(clientFactory, new BucketRegionCache());
+    }
+
+    public S3UrlStreamHandler(AwsClientFactory<? extends AmazonS3> clientFactory, BucketRegionCache regionCache) {
         this.clientFactory = clientFactory;
+        this.regionCache = regionCache;
     }
 
     @Override
     protected URLConnection openConnection(URL u) throws IOException {
-        S3UrlConnection connection = new S3UrlConnection(clientFactory, u);
+        S3UrlConnection connection = new S3UrlConnection(clientFactory, regionCache, u);
         connection.connect();
         return connection;
     }
@@ -0,0 +1,386 @@
+package se.raneland.urlhandler.aws.s3;
+
+import io.airlift.compress.MalformedInputException;
+import io.airlift.compress.zstd.ZstdDecompressor;
+import io.airlift.compress.zstd.ZstdInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * {@link InputStream} that decompresses zstd data, decompressing several frames in parallel.
+ *
+ * zstd data consists of independently compressed frames. Multi-frame files, e.g. written by {@code pzstd} or
+ * {@code zstd --rsyncable}, store the decompressed size in the header of each frame. This makes it possible to read
+ * frames ahead and decompress them on other threads while the output is still returned in order, just like
+ * {@link BgzfInputStream} does with BGZF blocks.
+ *
+ * Frames without a known size, or larger than {@link #MAX_PARALLEL_FRAME_SIZE}, are decompressed as a stream on the
+ * reading thread once the frames before them have been returned.
+ *
+ * Requires {@code io.airlift:aircompressor} on the classpath.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class ZstdFramesInputStream extends InputStream {
+
+    public static final int MAX_PARALLEL_FRAME_SIZE = 8 * 1024 * 1024;
+
+    private static final int MAGIC = 0xFD2FB528;
+    private static final int SKIPPABLE_MAGIC = 0x184D2A50;
+    private static final int SKIPPABLE_MAGIC_MASK = 0xFFFFFFF0;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int BLOCK_HEADER_SIZE = 3;
+    private static final int CHECKSUM_SIZE = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final Executor executor;
+    private final int parallelism;
+    private final ArrayDeque<Future<byte[]>> pending;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private ByteBuffer current;
+    private FrameHeader waiting;
+    private InputStream sequential;
+    private boolean endOfInput;
+
+    /**
+     * Create a new stream.
+     *
+     * @param in The zstd data
+     * @param executor The executor to decompress frames on
+     * @param parallelism The maximum number of frames to read ahead and decompress at the same time
+     */
+    public ZstdFramesInputStream(InputStream in, Executor executor, int parallelism) {
+        this.in = in;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.pending = new ArrayDeque<>(parallelism);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!ensureAvailable()) {
+            return -1;
+        }
+        return current.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(!ensureAvailable()) {
+            return -1;
+        }
+        len = Math.min(len, current.remaining());
+        current.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public int available() {
+        return current != null ? current.remaining() : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(Future<byte[]> frame : pending) {
+            frame.cancel(false);
+        }
+        pending.clear();
+        in.close();
+    }
+
+    private boolean ensureAvailable() throws IOException {
+        while(current == null || !current.hasRemaining()) {
+            if(sequential != null) {
+                int read = sequential.read(buffer);
+                if(read >= 0) {
+                    current = ByteBuffer.wrap(buffer, 0, read);
+                    continue;
+                }
+                sequential = null;
+            }
+            fill();
+            Future<byte[]> next = pending.poll();
+            if(next != null) {
+                current = ByteBuffer.wrap(await(next));
+            } else if(waiting != null) {
+                // Every frame before this one has been returned, stream it
+                sequential = new ZstdInputStream(new SequenceInputStream(new ByteArrayInputStream(waiting.bytes),
+                        new FrameBodyInputStream(waiting.checksum)));
+                waiting = null;
+            } else {
+                return false;
+            }
+        }
+        // Keep the other threads busy while the caller reads this frame
+        fill();
+        return true;
+    }
+
+    private void fill() throws IOException {
+        while(!endOfInput && sequential == null && waiting == null && pending.size() < parallelism) {
+            FrameHeader header = readHeader();
+            if(header == null) {
+                endOfInput = true;
+            } else if(header.contentSize < 0 || header.contentSize > MAX_PARALLEL_FRAME_SIZE) {
+                waiting = header;
+            } else {
+                ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                frame.write(header.bytes);
+                readBody(frame, header.checksum);
+                byte[] compressed = frame.toByteArray();
+                int size = (int) header.contentSize;
+                pending.add(CompletableFuture.supplyAsync(() -> decompress(compressed, size), executor));
+            }
+        }
+    }
+
+    private static byte[] await(Future<byte[]> frame) throws IOException {
+        try {
+            return frame.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Could not decompress frame: " + cause.getMessage(), cause);
+        }
+    }
+
+    private static byte[] decompress(byte[] frame, int size) {
+        byte[] output = new byte[size];
+        try {
+            int decompressed = new ZstdDecompressor().decompress(frame, 0, frame.length, output, 0, size);
+            if(decompressed != size) {
+                throw new CompletionException(new IOException("Corrupt zstd frame"));
+            }
+        } catch (MalformedInputException e) {
+            throw new CompletionException(new IOException("Corrupt zstd frame: " + e.getMessage(), e));
+        }
+        return output;
+    }
+
+    /**
+     * Read the header of the next frame, skipping skippable frames.
+     *
+     * @return The header or null if there are no more frames
+     */
+    private FrameHeader readHeader() throws IOException {
+        while(true) {
+            byte[] magic = new byte[4];
+            int read = readFully(magic, 0, 4);
+            if(read == 0) {
+                return null;
+            }
+            if(read < 4) {
+                throw new EOFException("Truncated zstd frame header");
+            }
+            int value = littleEndianInt(magic, 0);
+            if((value & SKIPPABLE_MAGIC_MASK) == SKIPPABLE_MAGIC) {
+                byte[] size = new byte[4];
+                if(readFully(size, 0, 4) < 4) {
+                    throw new EOFException("Truncated zstd skippable frame");
+                }
+                skipFully(littleEndianInt(size, 0) & 0xffffffffL);
+                continue;
+            }
+            if(value != MAGIC) {
+                throw new IOException("Not a zstd frame");
+            }
+            int descriptor = in.read();
+            if(descriptor < 0) {
+                throw new EOFException("Truncated zstd frame header");
+            }
+            boolean singleSegment = (descriptor & 0x20) != 0;
+            int contentSizeFlag = descriptor >>> 6;
+            int windowSize = singleSegment ? 0 : 1;
+            int dictionaryIdSize = new int[]{0, 1, 2, 4}[descriptor & 3];
+            int contentSizeSize = new int[]{singleSegment ? 1 : 0, 2, 4, 8}[contentSizeFlag];
+
+            byte[] bytes = new byte[5 + windowSize + dictionaryIdSize + contentSizeSize];
+            System.arraycopy(magic, 0, bytes, 0, 4);
+            bytes[4] = (byte) descriptor;
+            if(readFully(bytes, 5, bytes.length - 5) < bytes.length - 5) {
+                throw new EOFException("Truncated zstd frame header");
+            }
+            long contentSize = -1;
+            if(contentSizeSize > 0) {
+                int offset = bytes.length - contentSizeSize;
+                contentSize = 0;
+                for(int i = contentSizeSize - 1; i >= 0; i--) {
+                    contentSize = contentSize << 8 | (bytes[offset + i] & 0xff);
+                }
+                if(contentSizeSize == 2) {
+                    contentSize += 256;
+                }
+            }
+            return new FrameHeader(bytes, (descriptor & 4) != 0, contentSize);
+        }
+    }
+
+    /**
+     * Read the blocks and checksum of the current frame.
+     */
+    private void readBody(ByteArrayOutputStream frame, boolean checksum) throws IOException {
+        byte[] block;
+        while((block = readBlock()) != null) {
+            frame.write(block);
+            if((block[0] & 1) != 0) {
+                break;
+            }
+        }
+        if(checksum) {
+            frame.write(readChecksum());
+        }
+    }
+
+    /**
+     * Read the header and content of the next block of the current frame.
+     */
+    private byte[] readBlock() throws IOException {
+        byte[] header = new byte[BLOCK_HEADER_SIZE];
+        if(readFully(header, 0, BLOCK_HEADER_SIZE) < BLOCK_HEADER_SIZE) {
+            throw new EOFException("Truncated zstd block");
+        }
+        int blockHeader = (header[0] & 0xff) | (header[1] & 0xff) << 8 | (header[2] & 0xff) << 16;
+        int type = blockHeader >>> 1 & 3;
+        int size = blockHeader >>> 3;
+        if(type == 3 || size > MAX_BLOCK_SIZE) {
+            throw new IOException("Corrupt zstd block");
+        }
+        // RLE blocks store a single byte that is repeated size times
+        int contentSize = type == 1 ? 1 : size;
+        byte[] block = new byte[BLOCK_HEADER_SIZE + contentSize];
+        System.arraycopy(header, 0, block, 0, BLOCK_HEADER_SIZE);
+        if(readFully(block, BLOCK_HEADER_SIZE, contentSize) < contentSize) {
+            throw new EOFException("Truncated zstd block");
+        }
+        return block;
+    }
+
+    private byte[] readChecksum() throws IOException {
+        byte[] checksum = new byte[CHECKSUM_SIZE];
+        if(readFully(checksum, 0, CHECKSUM_SIZE) < CHECKSUM_SIZE) {
+            throw new EOFException("Truncated zstd frame checksum");
+        }
+        return checksum;
+    }
+
+    private int readFully(byte[] target, int offset, int length) throws IOException {
+        int total = 0;
+        while(total < length) {
+            int read = in.read(target, offset + total, length - total);
+            if(read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private void skipFully(long length) throws IOException {
+        while(length > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if(read < 0) {
+                throw new EOFException("Truncated zstd skippable frame");
+            }
+            length -= read;
+        }
+    }
+
+    private static int littleEndianInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8
+                | (buffer[offset + 2] & 0xff) << 16 | (buffer[offset + 3] & 0xff) << 24;
+    }
+
+    private static class FrameHeader {
+        private final byte[] bytes;
+        private final boolean checksum;
+        private final long contentSize;
+
+        private FrameHeader(byte[] bytes, boolean checksum, long contentSize) {
+            this.bytes = bytes;
+            this.checksum = checksum;
+            this.contentSize = contentSize;
+        }
+    }
+
+    /**
+     * The blocks and checksum of a single frame, read one block at a time so that large frames aren't buffered.
+     */
+    private class FrameBodyInputStream extends InputStream {
+
+        private final boolean checksum;
+        private byte[] chunk;
+        private int position;
+        private boolean done;
+
+        private FrameBodyInputStream(boolean checksum) {
+            this.checksum = checksum;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(!ensureChunk()) {
+                return -1;
+            }
+            return chunk[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(!ensureChunk()) {
+                return -1;
+            }
+            len = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, len);
+            position += len;
+            return len;
+        }
+
+        private boolean ensureChunk() throws IOException {
+            while(chunk == null || position >= chunk.length) {
+                if(done) {
+                    return false;
+                }
+                if(chunk != null && (chunk[0] & 1) != 0) {
+                    // The last block has been read
+                    done = true;
+                    chunk = checksum ? readChecksum() : null;
+                    position = 0;
+                    if(chunk == null) {
+                        return false;
+                    }
+                    return true;
+                }
+                chunk = readBlock();
+                position = 0;
+            }
+            return true;
+        }
+    }
+}
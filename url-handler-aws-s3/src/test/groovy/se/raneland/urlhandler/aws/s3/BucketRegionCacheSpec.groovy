@@ -0,0 +1,144 @@
+package se.raneland.urlhandler.aws.s3
+
+import com.amazonaws.AmazonServiceException
+import com.amazonaws.regions.Region
+import com.amazonaws.regions.Regions
+import com.amazonaws.services.s3.AmazonS3
+import se.raneland.urlhandler.aws.AwsClientFactory
+import se.raneland.urlhandler.aws.ClientCreationException
+import se.raneland.urlhandler.aws.ClientOptions
+import spock.lang.Specification
+
+import java.time.Clock
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class BucketRegionCacheSpec extends Specification {
+
+    AwsClientFactory<AmazonS3> clientFactory = Mock()
+
+    AmazonS3 client = Mock()
+
+    ClientOptions options = new ClientOptions()
+
+    Clock clock = Mock()
+
+    def "That location constraints are translated to regions"() {
+        expect:
+        BucketRegionCache.toRegion(location) == Region.getRegion(expectedRegion)
+
+        where:
+        location         | expectedRegion
+        null             | Regions.US_EAST_1
+        ""               | Regions.US_EAST_1
+        "US"             | Regions.US_EAST_1
+        "EU"             | Regions.EU_WEST_1
+        "eu-central-1"   | Regions.EU_CENTRAL_1
+        "ap-southeast-2" | Regions.AP_SOUTHEAST_2
+    }
+
+    def "That discovered regions are cached until they expire"() {
+        given: "A cache with a ttl of 10 milliseconds"
+        def cache = new BucketRegionCache(10, 1, TimeUnit.MILLISECONDS, clock)
+        clock.millis() >>> [0, 9, 10]
+
+        when: "The region is requested twice before it expires and once after"
+        def regions = (1..3).collect { cache.getRegion("bucket", clientFactory, options) }
+
+        then: "A client is only retrieved and the location looked up when the region isn't cached"
+        2 * clientFactory.create(options) >> client
+        2 * client.getBucketLocation("bucket") >> "eu-west-1"
+        regions.every { it == Region.getRegion(Regions.EU_WEST_1) }
+    }
+
+    def "That failed lookups are cached for the failure ttl"() {
+        given: "A cache with a failure ttl of 1 millisecond"
+        def cache = new BucketRegionCache(10, 1, TimeUnit.MILLISECONDS, clock)
+        clock.millis() >>> [0, 0, 1]
+
+        when: "The region is requested three times"
+        def regions = (1..3).collect { cache.getRegion("bucket", clientFactory, options) }
+
+        then: "The failed lookup is retried once the failure has expired"
+        clientFactory.create(options) >> client
+        2 * client.getBucketLocation("bucket") >> { throw new AmazonServiceException("Access Denied") } >> "eu-west-1"
+        regions == [null, null, Region.getRegion(Regions.EU_WEST_1)]
+    }
+
+    def "That concurrent lookups of the same bucket are only made once"() {
+        given: "A cache and a slow location lookup"
+        def cache = new BucketRegionCache(10, 1, TimeUnit.MINUTES, clock)
+        clock.millis() >> 0
+        def start = new CountDownLatch(1)
+        def executor = Executors.newFixedThreadPool(8)
+
+        when: "The region is requested from several threads at the same time"
+        def futures = (1..8).collect { executor.submit({ start.await(); cache.getRegion("bucket", clientFactory, options) } as Callable) }
+        start.countDown()
+        def regions = futures.collect { it.get() }
+
+        then: "The location is only looked up once"
+        1 * clientFactory.create(options) >> client
+        1 * client.getBucketLocation("bucket") >> { Thread.sleep(100); "eu-west-1" }
+        regions.every { it == Region.getRegion(Regions.EU_WEST_1) }
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "That a slow lookup doesn't block lookups of other buckets"() {
+        given: "A cache and a lookup of one bucket that doesn't finish until released"
+        def cache = new BucketRegionCache(10, 1, TimeUnit.MINUTES, clock)
+        clock.millis() >> 0
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        // Spock mocks handle one invocation at a time, so a blocking lookup needs a plain stub
+        def slowClient = [getBucketLocation: { String bucket ->
+            if(bucket == "slow") {
+                started.countDown()
+                release.await()
+                return "eu-west-1"
+            }
+            return "eu-central-1"
+        }] as AmazonS3
+        def clientFactory = { slowClient } as AwsClientFactory<AmazonS3>
+        def executor = Executors.newSingleThreadExecutor()
+
+        when: "The other bucket is looked up while the slow lookup is in progress"
+        def slow = executor.submit({ cache.getRegion("slow", clientFactory, options) } as Callable)
+        started.await()
+        def fast = cache.getRegion("fast", clientFactory, options)
+        release.countDown()
+
+        then: "Both regions are discovered"
+        fast == Region.getRegion(Regions.EU_CENTRAL_1)
+        slow.get(10, TimeUnit.SECONDS) == Region.getRegion(Regions.EU_WEST_1)
+
+        cleanup:
+        release.countDown()
+        executor.shutdown()
+    }
+
+    def "That failing to create a client isn't cached"() {
+        given: "A cache"
+        def cache = new BucketRegionCache(10, 1, TimeUnit.MINUTES, clock)
+        clock.millis() >> 0
+
+        when: "The region is requested and no client can be created"
+        cache.getRegion("bucket", clientFactory, options)
+
+        then: "The failure is propagated"
+        1 * clientFactory.create(options) >> { throw new ClientCreationException("No credentials") }
+        thrown(ClientCreationException)
+
+        when: "The region is requested again"
+        def region = cache.getRegion("bucket", clientFactory, options)
+
+        then: "The lookup is retried"
+        1 * clientFactory.create(options) >> client
+        1 * client.getBucketLocation("bucket") >> "eu-west-1"
+        region == Region.getRegion(Regions.EU_WEST_1)
+    }
+}
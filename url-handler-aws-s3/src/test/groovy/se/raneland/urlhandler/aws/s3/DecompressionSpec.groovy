@@ -0,0 +1,238 @@
+package se.raneland.urlhandler.aws.s3
+
+import io.airlift.compress.zstd.ZstdCompressor
+import spock.lang.Specification
+
+import java.util.concurrent.Executors
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.GZIPOutputStream
+
+class DecompressionSpec extends Specification {
+
+    def "That compression is detected from content encoding and name"() {
+        expect:
+        Decompression.detect(contentEncoding, name) == expected
+
+        where:
+        contentEncoding | name          | expected
+        "gzip"          | "data.csv"    | "gzip"
+        "x-gzip"        | null          | "gzip"
+        "identity"      | "data.csv.gz" | null
+        null            | "data.csv.gz" | "gzip"
+        ""              | "data.BGZ"    | "gzip"
+        null            | "data.csv"    | null
+        "zstd"          | "data.csv"    | "zstd"
+        null            | "data.csv.zst"| "zstd"
+        "gzip"          | "data.csv.zst"| "gzip"
+    }
+
+    def "That gzip data is decompressed"() {
+        given: "Some gzipped data"
+        def data = randomText(1024 * 1024)
+
+        when: "The data is decompressed"
+        def result = Decompression.decompress(new ByteArrayInputStream(gzip(data)), "gzip").bytes
+
+        then: "The original data is returned"
+        result == data
+    }
+
+    def "That the source is closed if the data isn't gzip"() {
+        given: "Data that isn't gzipped and large enough to fill the read-ahead queue"
+        def closed = false
+        def source = new ByteArrayInputStream(randomText(4 * 1024 * 1024)) {
+            @Override
+            void close() {
+                closed = true
+            }
+        }
+
+        when: "The data is decompressed as gzip"
+        Decompression.decompress(source, "gzip")
+
+        then: "Decompression fails and the source is closed"
+        thrown(java.util.zip.ZipException)
+        closed
+    }
+
+    def "That BGZF data is decompressed in order"() {
+        given: "Some BGZF data spanning many blocks"
+        def data = randomText(1024 * 1024)
+
+        when: "The data is decompressed"
+        def stream = Decompression.decompress(new ByteArrayInputStream(bgzf(data)), "gzip")
+        def result = stream.bytes
+
+        then: "The data is decompressed as BGZF and the original data is returned"
+        stream instanceof BgzfInputStream
+        result == data
+    }
+
+    def "That BGZF blocks are decompressed in parallel"() {
+        given: "Some BGZF data and an executor that records the threads used"
+        def data = randomText(1024 * 1024)
+        def threads = Collections.synchronizedSet(new HashSet())
+        def pool = Executors.newFixedThreadPool(4)
+        def executor = { Runnable task -> pool.execute { threads << Thread.currentThread(); task.run() } } as java.util.concurrent.Executor
+
+        when: "The data is decompressed"
+        def result = new BgzfInputStream(new ByteArrayInputStream(bgzf(data)), executor, 8).bytes
+
+        then: "The original data is returned and several threads were used"
+        result == data
+        threads.size() > 1
+
+        cleanup:
+        pool.shutdownNow()
+    }
+
+    def "That corrupt BGZF data fails"() {
+        given: "Some BGZF data with a corrupt block"
+        def compressed = bgzf(randomText(1024))
+        compressed[compressed.length - 40] ^= 0xff
+
+        when: "The data is decompressed"
+        new BgzfInputStream(new ByteArrayInputStream(compressed), { it.run() }, 2).bytes
+
+        then: "An exception is thrown"
+        thrown(IOException)
+    }
+
+    def "That multi-frame zstd data is decompressed in order"() {
+        given: "Some zstd data spanning many frames, with a skippable frame in between"
+        def data = randomText(1024 * 1024)
+        def compressed = new ByteArrayOutputStream()
+        compressed.write(zstd(data, 0, 300000))
+        compressed.write([0x50, 0x2a, 0x4d, 0x18, 3, 0, 0, 0, 1, 2, 3] as byte[])
+        for(int offset = 300000; offset < data.length; offset += 100000) {
+            compressed.write(zstd(data, offset, Math.min(100000, data.length - offset)))
+        }
+
+        when: "The data is decompressed"
+        def stream = Decompression.decompress(new ByteArrayInputStream(compressed.toByteArray()), "zstd")
+        def result = stream.bytes
+
+        then: "The original data is returned"
+        stream instanceof ZstdFramesInputStream
+        result == data
+    }
+
+    def "That zstd frames are decompressed in parallel"() {
+        given: "Some zstd frames and an executor that records the threads used"
+        def data = randomText(1024 * 1024)
+        def compressed = new ByteArrayOutputStream()
+        for(int offset = 0; offset < data.length; offset += 64000) {
+            compressed.write(zstd(data, offset, Math.min(64000, data.length - offset)))
+        }
+        def threads = Collections.synchronizedSet(new HashSet())
+        def pool = Executors.newFixedThreadPool(4)
+        def executor = { Runnable task -> pool.execute { threads << Thread.currentThread(); task.run() } } as java.util.concurrent.Executor
+
+        when: "The data is decompressed"
+        def result = new ZstdFramesInputStream(new ByteArrayInputStream(compressed.toByteArray()), executor, 8).bytes
+
+        then: "The original data is returned and several threads were used"
+        result == data
+        threads.size() > 1
+
+        cleanup:
+        pool.shutdownNow()
+    }
+
+    def "That zstd frames without a content size are streamed"() {
+        given: "A frame without a content size between two frames with one"
+        def data = randomText(512 * 1024)
+        def unsized = zstd(data, 100000, 200000)
+        // Replace the single segment flag and 4 byte content size with a 256 KiB window
+        assert unsized[4] == (byte) 0xa4
+        def stripped = new ByteArrayOutputStream()
+        stripped.write(unsized, 0, 4)
+        stripped.write(0x04)
+        stripped.write(0x40)
+        stripped.write(unsized, 9, unsized.length - 9)
+        def compressed = new ByteArrayOutputStream()
+        compressed.write(zstd(data, 0, 100000))
+        compressed.write(stripped.toByteArray())
+        compressed.write(zstd(data, 300000, data.length - 300000))
+
+        when: "The data is decompressed"
+        def result = new ZstdFramesInputStream(new ByteArrayInputStream(compressed.toByteArray()), { it.run() }, 2).bytes
+
+        then: "The original data is returned"
+        result == data
+    }
+
+    def "That corrupt zstd data fails"() {
+        given: "Some zstd data with a truncated frame"
+        def compressed = zstd(randomText(1024), 0, 1024)
+
+        when: "The data is decompressed"
+        new ZstdFramesInputStream(new ByteArrayInputStream(Arrays.copyOf(compressed, compressed.length - 5)),
+                { it.run() }, 2).bytes
+
+        then: "An exception is thrown"
+        thrown(IOException)
+    }
+
+    def randomText(int length) {
+        def random = new Random(length)
+        def words = ["alpha", "beta", "gamma", "delta", "\n"]
+        def builder = new StringBuilder()
+        while(builder.length() < length) {
+            builder << words[random.nextInt(words.size())] << random.nextInt(1000)
+        }
+        return builder.toString().substring(0, length).getBytes("UTF-8")
+    }
+
+    def gzip(byte[] data) {
+        def bytes = new ByteArrayOutputStream()
+        new GZIPOutputStream(bytes).withStream { it.write(data) }
+        return bytes.toByteArray()
+    }
+
+    def zstd(byte[] data, int offset, int length) {
+        def compressor = new ZstdCompressor()
+        def compressed = new byte[compressor.maxCompressedLength(length)]
+        int compressedLength = compressor.compress(data, offset, length, compressed, 0, compressed.length)
+        return Arrays.copyOf(compressed, compressedLength)
+    }
+
+    /**
+     * Compress data as BGZF with blocks of at most 64000 bytes followed by an empty end of file block.
+     */
+    def bgzf(byte[] data) {
+        def output = new ByteArrayOutputStream()
+        for(int offset = 0; offset <= data.length; offset += 64000) {
+            int length = Math.min(64000, data.length - offset)
+            def deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true)
+            deflater.setInput(data, offset, length)
+            deflater.finish()
+            def compressed = new byte[70000]
+            int compressedLength = deflater.deflate(compressed)
+            deflater.end()
+            def crc = new CRC32()
+            crc.update(data, offset, length)
+            int blockSize = 18 + compressedLength + 8
+            output.write([31, 139, 8, 4, 0, 0, 0, 0, 0, 255, 6, 0, 66, 67, 2, 0] as byte[])
+            writeShort(output, blockSize - 1)
+            output.write(compressed, 0, compressedLength)
+            writeInt(output, crc.value)
+            writeInt(output, length)
+            if(length == 0) {
+                break
+            }
+        }
+        return output.toByteArray()
+    }
+
+    def writeShort(OutputStream out, int value) {
+        out.write(value & 0xff)
+        out.write((value >> 8) & 0xff)
+    }
+
+    def writeInt(OutputStream out, long value) {
+        writeShort(out, (int) (value & 0xffff))
+        writeShort(out, (int) ((value >> 16) & 0xffff))
+    }
+}
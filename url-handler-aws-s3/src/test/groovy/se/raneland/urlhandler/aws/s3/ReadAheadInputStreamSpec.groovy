@@ -0,0 +1,55 @@
+package se.raneland.urlhandler.aws.s3
+
+import com.amazonaws.SdkClientException
+import spock.lang.Specification
+import spock.lang.Timeout
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.RejectedExecutionException
+
+class ReadAheadInputStreamSpec extends Specification {
+
+    def "That the whole stream is read in order"() {
+        given: "Some data"
+        def data = new byte[1024 * 1024]
+        new Random(0).nextBytes(data)
+
+        when: "The data is read through a read-ahead stream with small chunks"
+        def result = new ReadAheadInputStream(new ByteArrayInputStream(data), 1000, 4).bytes
+
+        then: "All data is returned"
+        result == data
+    }
+
+    @Timeout(10)
+    def "That unchecked exceptions from the stream are reported to the reader"() {
+        given: "A stream that fails with an unchecked exception after some data, like a truncated S3 download"
+        def source = new SequenceInputStream(new ByteArrayInputStream(new byte[100]), new InputStream() {
+            @Override
+            int read() {
+                throw new SdkClientException("Data read has a different length than the expected")
+            }
+        })
+
+        when: "The stream is read"
+        new ReadAheadInputStream(source).bytes
+
+        then: "The failure is thrown instead of blocking"
+        def e = thrown(IOException)
+        e.cause instanceof SdkClientException
+    }
+
+    def "That streams are read directly when no reader is available"() {
+        given: "An executor that is busy"
+        def executor = Mock(ExecutorService) {
+            submit(_ as Runnable) >> { throw new RejectedExecutionException() }
+        }
+
+        when: "A stream is read"
+        def stream = new ReadAheadInputStream(new ByteArrayInputStream("data".bytes), 1024, 4, executor)
+
+        then: "The data is read without reading ahead"
+        !stream.readingAhead
+        stream.text == "data"
+    }
+}
@@ -0,0 +1,131 @@
+package se.raneland.urlhandler.aws.s3
+
+import com.amazonaws.AmazonServiceException
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.CopyObjectResult
+import com.amazonaws.services.s3.model.CopyPartResult
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult
+import com.amazonaws.services.s3.model.ObjectMetadata
+import se.raneland.urlhandler.aws.AwsClientFactory
+import spock.lang.Specification
+
+class S3CopierSpec extends Specification {
+
+    static final long MB = 1024 * 1024
+
+    AwsClientFactory<AmazonS3> clientFactory = Mock()
+
+    AmazonS3 client = Mock()
+
+    def source = new URL(null, "s3://source/path/from", {})
+
+    def destination = new URL(null, "s3://destination/path/to", {})
+
+    def setup() {
+        clientFactory.create(_) >> client
+    }
+
+    def "That small objects are copied with a single request"() {
+        given: "A copier and a small source object"
+        def copier = new S3Copier(clientFactory, null)
+        client.getObjectMetadata("source", "path/from") >> metadata(10 * MB, "etag")
+
+        when: "The object is copied"
+        copier.copy(source, destination)
+
+        then: "The object is copied by S3 as long as it hasn't changed"
+        1 * client.copyObject({
+            it.sourceBucketName == "source" && it.sourceKey == "path/from" &&
+                    it.destinationBucketName == "destination" && it.destinationKey == "path/to" &&
+                    it.matchingETagConstraints == ["etag"]
+        }) >> new CopyObjectResult()
+        0 * client.initiateMultipartUpload(_)
+    }
+
+    def "That large objects are copied in parts"() {
+        given: "A copier with a low threshold and a source object that is larger"
+        def copier = new S3Copier(clientFactory, null, 10 * MB, 5 * MB, 2)
+        client.getObjectMetadata("source", "path/from") >> metadata(12 * MB, "etag")
+
+        when: "The object is copied"
+        copier.copy(source, destination)
+
+        then: "The parts are copied by S3 and the upload completed"
+        1 * client.initiateMultipartUpload({
+            it.bucketName == "destination" && it.key == "path/to" && it.objectMetadata.contentType == "text/csv"
+        }) >> new InitiateMultipartUploadResult(uploadId: "upload")
+        1 * client.copyPart({ it.partNumber == 1 && it.firstByte == 0 && it.lastByte == 5 * MB - 1 }) >> part(1)
+        1 * client.copyPart({ it.partNumber == 2 && it.firstByte == 5 * MB && it.lastByte == 10 * MB - 1 }) >> part(2)
+        1 * client.copyPart({ it.partNumber == 3 && it.firstByte == 10 * MB && it.lastByte == 12 * MB - 1 }) >> part(3)
+        1 * client.completeMultipartUpload({
+            it.uploadId == "upload" && it.partETags*.partNumber == [1, 2, 3]
+        })
+        0 * client.copyObject(_)
+    }
+
+    def "That failed multipart copies are aborted"() {
+        given: "A copier with a low threshold and a source object that is larger"
+        def copier = new S3Copier(clientFactory, null, 10 * MB, 5 * MB, 1)
+        client.getObjectMetadata("source", "path/from") >> metadata(12 * MB, "etag")
+        client.initiateMultipartUpload(_) >> new InitiateMultipartUploadResult(uploadId: "upload")
+
+        when: "The object is copied and copying a part fails"
+        copier.copy(source, destination)
+
+        then: "The upload is aborted and an exception thrown"
+        client.copyPart(_) >> part(1) >> { throw new AmazonServiceException("SlowDown") } >> part(3)
+        1 * client.abortMultipartUpload({ it.uploadId == "upload" })
+        0 * client.completeMultipartUpload(_)
+        thrown(IOException)
+    }
+
+    def "That a source that changes during the copy fails the copy"() {
+        given: "A copier and a small source object"
+        def copier = new S3Copier(clientFactory, null)
+        client.getObjectMetadata("source", "path/from") >> metadata(10 * MB, "etag")
+
+        when: "The object is copied and the ETag doesn't match"
+        copier.copy(source, destination)
+
+        then: "An exception is thrown"
+        1 * client.copyObject(_) >> null
+        thrown(IOException)
+    }
+
+    def "That a missing source fails the copy with an IOException"() {
+        given: "A copier and a source object that doesn't exist"
+        def copier = new S3Copier(clientFactory, null)
+        client.getObjectMetadata("source", "path/from") >> { throw new AmazonServiceException("Not Found") }
+
+        when: "The object is copied"
+        copier.copy(source, destination)
+
+        then: "An IOException is thrown"
+        thrown(IOException)
+        0 * client.copyObject(_)
+    }
+
+    def "That non-S3 URLs can't be copied to S3 URLs"() {
+        given: "A copier"
+        def copier = new S3Copier(clientFactory, null)
+
+        when: "A file is copied to S3"
+        copier.copy(new URL("file:///tmp/from"), destination)
+
+        then: "The copy is rejected without touching S3"
+        thrown(IllegalArgumentException)
+        0 * clientFactory.create(_)
+    }
+
+    def metadata(long contentLength, String eTag) {
+        def metadata = new ObjectMetadata()
+        metadata.contentLength = contentLength
+        metadata.contentType = "text/csv"
+        metadata.setHeader("ETag", eTag)
+        return metadata
+    }
+
+    def part(int partNumber) {
+        return new CopyPartResult(partNumber: partNumber, ETag: "part${partNumber}")
+    }
+}
@@ -3,6 +3,14 @@ package se.raneland.urlhandler.aws.s3
 import com.amazonaws.regions.Region
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.internal.SdkFilterInputStream
+import com.amazonaws.services.s3.internal.eventstreaming.HeaderValue
+import com.amazonaws.services.s3.internal.eventstreaming.Message
+import com.amazonaws.services.s3.model.ObjectMetadata
+import com.amazonaws.services.s3.model.SelectObjectContentEventStream
+import com.amazonaws.services.s3.model.SelectObjectContentRequest
+import com.amazonaws.services.s3.model.SelectObjectContentResult
+import com.amazonaws.services.s3.model.S3Object
 import se.raneland.urlhandler.aws.AwsClientFactory;
 import spock.lang.Specification;
 
@@ -37,4 +45,171 @@ class S3UrlConnectionSpec extends Specification {
         "s3://bucket.with.dots/key"             | "bucket.with.dots"   | null           | "key"
         "s3://bucket.with.region.eu-west-1/key" | "bucket.with.region" | "eu-west-1"    | "key"
     }
+
+    def "That the region of a bucket without an explicit region is discovered once"() {
+        given: "A region cache and two URLs for the same bucket"
+        def regionCache = new BucketRegionCache()
+        def url1 = new URL(null, "s3://bucket/key1", {})
+        def url2 = new URL(null, "s3://bucket/key2", {})
+        def regionalClient = Mock(AmazonS3)
+
+        when: "Connections are created and connected"
+        new S3UrlConnection(clientFactory, regionCache, url1).connect()
+        new S3UrlConnection(clientFactory, regionCache, url2).connect()
+
+        then: "The location is only looked up once and both connections use a client for the discovered region"
+        1 * clientFactory.create({ !it.region }) >> client
+        1 * client.getBucketLocation("bucket") >> "eu-west-1"
+        2 * clientFactory.create({ it.region == Region.getRegion(Regions.EU_WEST_1) }) >> regionalClient
+        1 * regionalClient.getObjectMetadata("bucket", "key1")
+        1 * regionalClient.getObjectMetadata("bucket", "key2")
+    }
+
+    def "That an explicit region skips discovery"() {
+        given: "A region cache and an URL with a region"
+        def regionCache = new BucketRegionCache()
+        def url = new URL(null, "s3://bucket.eu-west-1/key", {})
+
+        when: "A connection is created and connected"
+        new S3UrlConnection(clientFactory, regionCache, url).connect()
+
+        then: "The location is never looked up"
+        1 * clientFactory.create({ it.region == Region.getRegion(Regions.EU_WEST_1) }) >> client
+        0 * client.getBucketLocation(_)
+    }
+
+    def "That objects are decompressed when requested"() {
+        given: "A gzip encoded object"
+        def data = "decompressed".bytes
+        def compressed = new ByteArrayOutputStream()
+        new java.util.zip.GZIPOutputStream(compressed).withStream { it.write(data) }
+        def metadata = new ObjectMetadata(contentEncoding: "gzip", contentLength: compressed.size())
+        def object = new S3Object(objectContent: new com.amazonaws.services.s3.model.S3ObjectInputStream(
+                new ByteArrayInputStream(compressed.toByteArray()), null))
+        clientFactory.create(_) >> client
+        client.getObjectMetadata("bucket", "key") >> metadata
+        client.getObject("bucket", "key") >> object
+
+        when: "The object is read through a connection with decompression enabled"
+        def connection = new S3UrlConnection(clientFactory, new URL(null, url, {}))
+        connection.connect()
+        def content = connection.inputStream.bytes
+
+        then: "The decompressed object is returned"
+        content == data
+        connection.contentEncoding == null
+        connection.contentLengthLong == -1
+
+        where:
+        url << ["s3://bucket/key?decompress", "s3://bucket/key?decompress=true"]
+    }
+
+    def "That the headers of decompressed and selected objects agree with the content encoding and length"() {
+        given: "A gzip encoded object"
+        def metadata = new ObjectMetadata(contentEncoding: "gzip", contentLength: 10, lastModified: new Date(),
+                httpExpiresDate: new Date())
+        clientFactory.create(_) >> client
+        client.getObjectMetadata("bucket", "key") >> metadata
+
+        when: "A connection is created"
+        def connection = new S3UrlConnection(clientFactory, new URL(null, url, {}))
+        connection.connect()
+
+        then: "The stored encoding and length are only reported as headers if the object isn't decompressed or selected"
+        connection.getHeaderField("Content-Encoding") == encoding
+        connection.getHeaderField("content-length") == length
+        connection.headerFields["Content-Encoding"] == (encoding ? [encoding] : null)
+        connection.headerFields["Content-Length"] == (length ? [length] : null)
+        connection.contentEncoding == encoding
+        connection.contentLengthLong == (length ? length as long : -1)
+
+        where:
+        url                                                   | encoding | length
+        "s3://bucket/key?decompress"                          | null     | null
+        "s3://bucket/key?select=SELECT%20*%20FROM%20S3Object" | null     | null
+        "s3://bucket/key"                                     | "gzip"   | "10"
+    }
+
+    def "That objects are not decompressed by default"() {
+        given: "A gzip encoded object"
+        def metadata = new ObjectMetadata(contentEncoding: "gzip", contentLength: 10)
+        clientFactory.create(_) >> client
+        client.getObjectMetadata("bucket", "key") >> metadata
+
+        when: "A connection is created without decompression"
+        def connection = new S3UrlConnection(clientFactory, new URL(null, "s3://bucket/key", {}))
+        connection.connect()
+
+        then: "The stored encoding and length are reported"
+        !connection.decompress
+        connection.contentEncoding == "gzip"
+        connection.contentLengthLong == 10
+    }
+
+    def "That select expressions are pushed down to S3"() {
+        given: "A CSV object and a stub returning a canned event stream"
+        clientFactory.create(_) >> client
+        client.getObjectMetadata("bucket", "data.csv.gz") >> new ObjectMetadata(contentLength: 1000)
+        def url = new URL(null, "s3://bucket/data.csv.gz?select=" +
+                URLEncoder.encode("SELECT s._1 FROM S3Object s WHERE s._2 > 10", "UTF-8") + "&header=use&output=json", {})
+
+        when: "The object is read through the connection"
+        def connection = new S3UrlConnection(clientFactory, url)
+        connection.connect()
+        def content = connection.inputStream.text
+
+        then: "The filter is sent to S3 and the selected records returned"
+        1 * client.selectObjectContent({ SelectObjectContentRequest request ->
+            request.bucketName == "bucket" && request.key == "data.csv.gz" &&
+                    request.expression == "SELECT s._1 FROM S3Object s WHERE s._2 > 10" &&
+                    request.expressionType == "SQL" &&
+                    request.inputSerialization.csv.fileHeaderInfo == "USE" &&
+                    request.inputSerialization.compressionType == "GZIP" &&
+                    request.outputSerialization.json
+        }) >> selectResult('{"_1":"a"}\n', '{"_1":"b"}\n')
+        0 * client.getObject(_, _)
+        content == '{"_1":"a"}\n{"_1":"b"}\n'
+        connection.contentLengthLong == -1
+    }
+
+    def "That select options can be set as request properties"() {
+        given: "A JSON lines object"
+        clientFactory.create(_) >> client
+        client.getObjectMetadata("bucket", "data.json") >> new ObjectMetadata(contentLength: 1000)
+
+        when: "The object is read with select options set as request properties"
+        def connection = new S3UrlConnection(clientFactory, new URL(null, "s3://bucket/data.json?input=csv", {}))
+        connection.setRequestProperty("select", "SELECT * FROM S3Object s WHERE s.n > 1")
+        connection.setRequestProperty("input", "lines")
+        connection.connect()
+        def content = connection.inputStream.text
+
+        then: "The request properties are used"
+        1 * client.selectObjectContent({ SelectObjectContentRequest request ->
+            request.expression == "SELECT * FROM S3Object s WHERE s.n > 1" &&
+                    request.inputSerialization.json.type == "LINES" &&
+                    request.inputSerialization.compressionType == null &&
+                    request.outputSerialization.json
+        }) >> selectResult('{"n":2}\n')
+        content == '{"n":2}\n'
+    }
+
+    /**
+     * Create a result with an event stream like the one returned by S3.
+     */
+    def selectResult(String... records) {
+        def events = new ByteArrayOutputStream()
+        records.each { event("Records", it.bytes).encode(events) }
+        event("Stats", "<Stats/>".bytes).encode(events)
+        event("End", new byte[0]).encode(events)
+        def stream = new SdkFilterInputStream(new ByteArrayInputStream(events.toByteArray())) {}
+        return new SelectObjectContentResult(payload: new SelectObjectContentEventStream(stream))
+    }
+
+    def event(String type, byte[] payload) {
+        return new Message([
+                ":message-type": HeaderValue.fromString("event"),
+                ":event-type": HeaderValue.fromString(type)
+        ], payload)
+    }
 }
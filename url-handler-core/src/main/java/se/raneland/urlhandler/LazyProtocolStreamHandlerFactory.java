@@ -0,0 +1,127 @@
+/*
+ *    Copyright 2015 Daniel Raniz Raneland
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package se.raneland.urlhandler;
+
+import java.lang.reflect.InvocationTargetException;
+import java.net.URLStreamHandler;
+import java.util.ServiceConfigurationError;
+
+/**
+ * {@link ProtocolStreamHandlerFactory} that knows which protocols another factory supports and doesn't load or
+ * instantiate that factory until a stream handler is requested.
+ *
+ * This keeps factories with expensive dependencies, like the AWS SDK, from adding to the startup time of
+ * applications that never use their protocols.
+ */
+public class LazyProtocolStreamHandlerFactory implements ProtocolStreamHandlerFactory {
+
+    private final String className;
+    private final String[] protocols;
+    private final ClassLoader classLoader;
+
+    private volatile ProtocolStreamHandlerFactory factory;
+
+    /**
+     * Create a new lazy factory.
+     *
+     * @param className The name of the {@link ProtocolStreamHandlerFactory} to load, must have a public no-args constructor
+     * @param protocols The protocols supported by the factory
+     * @param classLoader The class loader to load the factory with
+     */
+    public LazyProtocolStreamHandlerFactory(String className, String[] protocols, ClassLoader classLoader) {
+        this.className = className;
+        this.protocols = protocols.clone();
+        this.classLoader = classLoader;
+    }
+
+    @Override
+    public String[] getSupportedProtocols() {
+        return protocols.clone();
+    }
+
+    /**
+     * Load the factory if it hasn't been loaded yet and delegate to it.
+     *
+     * @param protocol The protocol to create the handler for
+     * @return
+     * @throws ServiceConfigurationError If the factory can't be loaded
+     */
+    @Override
+    public URLStreamHandler createStreamHandler(String protocol) {
+        return getFactory().createStreamHandler(protocol);
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Check if the factory has been loaded.
+     *
+     * @return If the factory has been loaded or not
+     */
+    public boolean isLoaded() {
+        return factory != null;
+    }
+
+    /**
+     * Get the factory, loading it if it hasn't been loaded yet.
+     *
+     * @return The factory
+     * @throws ServiceConfigurationError If the factory can't be loaded
+     */
+    ProtocolStreamHandlerFactory getFactory() {
+        ProtocolStreamHandlerFactory result = factory;
+        if(result == null) {
+            synchronized (this) {
+                result = factory;
+                if(result == null) {
+                    result = load();
+                    factory = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private ProtocolStreamHandlerFactory load() {
+        return instantiate(className, classLoader);
+    }
+
+    /**
+     * Load and instantiate a factory.
+     *
+     * @param className The name of the {@link ProtocolStreamHandlerFactory} to load, must have a public no-args constructor
+     * @param classLoader The class loader to load the factory with
+     * @return The factory
+     * @throws ServiceConfigurationError If the factory can't be loaded
+     */
+    static ProtocolStreamHandlerFactory instantiate(String className, ClassLoader classLoader) {
+        try {
+            Class<?> cls = Class.forName(className, true, classLoader);
+            return cls.asSubclass(ProtocolStreamHandlerFactory.class).getConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new ServiceConfigurationError("Protocol factory " + className + " not found", e);
+        } catch (ClassCastException e) {
+            throw new ServiceConfigurationError("Protocol factory " + className + " is not a "
+                    + ProtocolStreamHandlerFactory.class.getName(), e);
+        } catch (NoSuchMethodException | InstantiationException | IllegalAccessException
+                | InvocationTargetException e) {
+            throw new ServiceConfigurationError("Protocol factory " + className + " could not be instantiated", e);
+        }
+    }
+}
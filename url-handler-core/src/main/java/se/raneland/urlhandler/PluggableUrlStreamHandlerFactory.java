@@ -16,6 +16,9 @@
 
 package se.raneland.urlhandler;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -24,8 +27,13 @@ import java.net.URLStreamHandler;
 import java.net.URLStreamHandlerFactory;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -38,6 +46,22 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class PluggableUrlStreamHandlerFactory implements URLStreamHandlerFactory {
 
+    private static final String SERVICE_FILE = "META-INF/services/" + ProtocolStreamHandlerFactory.class.getName();
+
+    private static final String PROTOCOLS_DECLARATION = "protocols:";
+
+    /**
+     * Discover all {@link ProtocolStreamHandlerFactory}s on the classpath of the context class loader and try to install
+     * a {@link PluggableUrlStreamHandlerFactory} with them on the JVM.
+     *
+     * @return If installation was successful or not
+     * @see #discover(ClassLoader)
+     * @see #tryInstall(PluggableUrlStreamHandlerFactory)
+     */
+    public static boolean tryInstallDiscovered() {
+        return tryInstall(discover(Thread.currentThread().getContextClassLoader()));
+    }
+
     /**
      * Try to install a {@link PluggableUrlStreamHandlerFactory} on the JVM.
      * First attempts to install it using Tomcat's URLStreamHandlerFactory, then
@@ -180,6 +204,72 @@ public class PluggableUrlStreamHandlerFactory implements URLStreamHandlerFactory
         return new PluggableUrlStreamHandlerFactory(factories, null);
     }
 
+    /**
+     * Create a new factory with all {@link ProtocolStreamHandlerFactory}s registered for {@link ServiceLoader}.
+     *
+     * Factories are registered in {@code META-INF/services/se.raneland.urlhandler.ProtocolStreamHandlerFactory} and
+     * may declare the protocols they support in a comment after the class name:
+     * <pre>
+     * com.example.MyProtocolStreamHandlerFactory # protocols: my, my2
+     * </pre>
+     * Factories that declare their protocols are not loaded until the first stream handler for one of their
+     * protocols is requested. Factories that don't are instantiated immediately to ask them.
+     *
+     * @param classLoader The class loader to discover and load factories with
+     * @throws ServiceConfigurationError If the service files can't be read or an undeclared factory can't be loaded
+     */
+    public static PluggableUrlStreamHandlerFactory discover(ClassLoader classLoader) {
+        if(classLoader == null) {
+            classLoader = ClassLoader.getSystemClassLoader();
+        }
+        Map<String, String[]> declarations = new LinkedHashMap<String, String[]>();
+        try {
+            Enumeration<URL> serviceFiles = classLoader.getResources(SERVICE_FILE);
+            while(serviceFiles.hasMoreElements()) {
+                readServiceFile(serviceFiles.nextElement(), declarations);
+            }
+        } catch (IOException e) {
+            throw new ServiceConfigurationError("Could not read " + SERVICE_FILE, e);
+        }
+
+        List<ProtocolStreamHandlerFactory> factories = new ArrayList<ProtocolStreamHandlerFactory>();
+        for(Map.Entry<String, String[]> declaration : declarations.entrySet()) {
+            if(declaration.getValue() != null) {
+                factories.add(new LazyProtocolStreamHandlerFactory(declaration.getKey(), declaration.getValue(), classLoader));
+            } else {
+                // No declared protocols, we have to ask the factory
+                factories.add(LazyProtocolStreamHandlerFactory.instantiate(declaration.getKey(), classLoader));
+            }
+        }
+        return factories(factories);
+    }
+
+    private static void readServiceFile(URL serviceFile, Map<String, String[]> declarations) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(serviceFile.openStream(), "UTF-8"));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                // Plain string handling, this runs at startup and regular expressions are comparatively expensive
+                int commentStart = line.indexOf('#');
+                String className = (commentStart >= 0 ? line.substring(0, commentStart) : line).trim();
+                if(className.isEmpty() || declarations.containsKey(className)) {
+                    continue;
+                }
+                String[] protocols = null;
+                String comment = commentStart >= 0 ? line.substring(commentStart + 1).trim() : "";
+                if(comment.startsWith(PROTOCOLS_DECLARATION)) {
+                    protocols = comment.substring(PROTOCOLS_DECLARATION.length()).split(",");
+                    for(int i = 0; i < protocols.length; i++) {
+                        protocols[i] = protocols[i].trim();
+                    }
+                }
+                declarations.put(className, protocols);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
     /**
      * Create a new factory with no protocol factories or fallbacks.
      * Don't forget to add protocol factories and fallbacks with
@@ -253,13 +343,20 @@ public class PluggableUrlStreamHandlerFactory implements URLStreamHandlerFactory
      * and if so delegates to it, otherwise goes through all fallback {@link URLStreamHandlerFactory}s and
      * returns the first non-null {@link URLStreamHandler}.
      *
+     * A factory that can't be loaded is treated as if it didn't support the protocol so that a broken module doesn't
+     * break the parsing of every URL.
+     *
      * @param protocol The protocol to create a stream handler for
      * @return A stream handler or null if none could be created
      */
     public URLStreamHandler createURLStreamHandler(String protocol) {
         ProtocolStreamHandlerFactory factory = factories.get(protocol.toLowerCase());
         if(factory != null) {
-            return factory.createStreamHandler(protocol.toLowerCase());
+            try {
+                return factory.createStreamHandler(protocol.toLowerCase());
+            } catch (ServiceConfigurationError e) {
+                // The factory couldn't be loaded, try the fallbacks
+            }
         }
         for(URLStreamHandlerFactory fallback : fallbacks) {
             URLStreamHandler handler = fallback.createURLStreamHandler(protocol);
@@ -0,0 +1,137 @@
+/*
+ *    Copyright 2015 Daniel Raniz Raneland
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package se.raneland.urlhandler
+
+import spock.lang.Specification
+
+class PluggableUrlStreamHandlerFactoryDiscoverySpec extends Specification {
+
+    def setup() {
+        CountingFactory.instances = 0
+    }
+
+    def "That factories with declared protocols are not loaded until used"() {
+        given: "A service file declaring the protocols of a factory"
+        def classLoader = serviceClassLoader("""
+            # A comment
+            ${CountingFactory.name} # protocols: p1, P2
+        """)
+
+        when: "Factories are discovered"
+        def factory = PluggableUrlStreamHandlerFactory.discover(classLoader)
+
+        then: "The factory is registered for the declared protocols but not instantiated"
+        factory.factories.keySet() == ["p1", "p2"] as Set
+        CountingFactory.instances == 0
+
+        when: "Stream handlers are requested for both protocols"
+        def handler1 = factory.createURLStreamHandler("p1")
+        def handler2 = factory.createURLStreamHandler("p2")
+
+        then: "The factory is instantiated once and creates the handlers"
+        CountingFactory.instances == 1
+        handler1.protocol == "p1"
+        handler2.protocol == "p2"
+    }
+
+    def "That factories without declared protocols are loaded immediately"() {
+        given: "A service file with a factory without declared protocols"
+        def classLoader = serviceClassLoader(CountingFactory.name)
+
+        when: "Factories are discovered"
+        def factory = PluggableUrlStreamHandlerFactory.discover(classLoader)
+
+        then: "The factory is instantiated and registered for the protocols it supports"
+        CountingFactory.instances == 1
+        factory.factories.keySet() == ["counting"] as Set
+    }
+
+    def "That a missing factory falls through to the fallbacks"() {
+        given: "A service file declaring a factory that doesn't exist and a fallback"
+        def classLoader = serviceClassLoader("com.example.MissingFactory # protocols: missing")
+        def factory = PluggableUrlStreamHandlerFactory.discover(classLoader)
+        def fallbackHandler = new ProtocolHandler(protocol: "missing")
+
+        when: "A stream handler is requested without fallbacks"
+        def handler = factory.createURLStreamHandler("missing")
+
+        then: "No handler is returned"
+        handler == null
+
+        when: "A stream handler is requested with a fallback"
+        factory.addFallback({ fallbackHandler } as URLStreamHandlerFactory)
+        handler = factory.createURLStreamHandler("missing")
+
+        then: "The handler of the fallback is returned"
+        handler.is(fallbackHandler)
+    }
+
+    def "That an undeclared factory that can't be loaded fails discovery"() {
+        given: "A service file with a factory without declared protocols that doesn't exist"
+        def classLoader = serviceClassLoader("com.example.MissingFactory")
+
+        when: "Factories are discovered"
+        PluggableUrlStreamHandlerFactory.discover(classLoader)
+
+        then: "An error is thrown"
+        thrown(ServiceConfigurationError)
+    }
+
+    def serviceClassLoader(String content) {
+        def file = File.createTempFile("services", ".txt")
+        file.deleteOnExit()
+        file.text = content
+        return new ClassLoader(getClass().classLoader) {
+            @Override
+            Enumeration<URL> getResources(String name) throws IOException {
+                if(name == "META-INF/services/${ProtocolStreamHandlerFactory.name}") {
+                    return Collections.enumeration([file.toURI().toURL()])
+                }
+                return super.getResources(name)
+            }
+        }
+    }
+
+    static class CountingFactory implements ProtocolStreamHandlerFactory {
+
+        static volatile int instances
+
+        CountingFactory() {
+            instances++
+        }
+
+        @Override
+        String[] getSupportedProtocols() {
+            return ["counting"] as String[]
+        }
+
+        @Override
+        URLStreamHandler createStreamHandler(String protocol) {
+            return new ProtocolHandler(protocol: protocol)
+        }
+    }
+
+    static class ProtocolHandler extends URLStreamHandler {
+
+        String protocol
+
+        @Override
+        protected URLConnection openConnection(URL u) throws IOException {
+            return null
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package se.raneland.urlhandler.loadtest;
+
+import com.amazonaws.AmazonServiceException;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import se.raneland.urlhandler.aws.s3.S3ProtocolStreamHandlerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads objects through the S3 URL handler from many threads against an {@link S3Stub} and records the latencies.
+ *
+ * Every request opens an {@code s3://} URL, which fetches the metadata of the object, and reads the whole object.
+ * Connection reuse and client caching can be judged from the number of clients created and the number of connections
+ * seen by the stub.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class LoadTest {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toMicros(10);
+
+    private final LoadTestOptions options;
+    private final StubOptions stubOptions;
+
+    public LoadTest(LoadTestOptions options, StubOptions stubOptions) {
+        this.options = options;
+        this.stubOptions = stubOptions;
+    }
+
+    /**
+     * Start a stub, run the workload against it and stop the stub.
+     *
+     * @return The result of the run
+     * @throws IOException If the stub can't be started
+     * @throws InterruptedException If interrupted while waiting for the workload to finish
+     */
+    public LoadTestResult run() throws IOException, InterruptedException {
+        if(options.getRequests() <= 0 && options.getDurationSeconds() <= 0) {
+            throw new IllegalArgumentException("Either the number of requests or the duration must be limited");
+        }
+        try(S3Stub stub = new S3Stub(stubOptions)) {
+            StubAwsClientFactory clientFactory = new StubAwsClientFactory(stub.getEndpoint());
+            URLStreamHandler handler = new S3ProtocolStreamHandlerFactory(clientFactory).createStreamHandler("s3");
+            List<URL> urls = createUrls(handler);
+
+            Histogram openLatency = new ConcurrentHistogram(HIGHEST_LATENCY, 3);
+            Histogram readLatency = new ConcurrentHistogram(HIGHEST_LATENCY, 3);
+            Histogram totalLatency = new ConcurrentHistogram(HIGHEST_LATENCY, 3);
+            Map<String, Long> errors = new ConcurrentHashMap<>();
+            AtomicLong nextRequest = new AtomicLong();
+            AtomicLong bytesRead = new AtomicLong();
+
+            long start = System.nanoTime();
+            long deadline = options.getDurationSeconds() > 0
+                    ? start + TimeUnit.SECONDS.toNanos(options.getDurationSeconds()) : Long.MAX_VALUE;
+            Runnable worker = () -> {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long request;
+                while((request = nextRequest.getAndIncrement()) < options.getRequests() || options.getRequests() <= 0) {
+                    if(System.nanoTime() >= deadline || Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    URL url = urls.get((int) (request % urls.size()));
+                    long opening = System.nanoTime();
+                    try {
+                        URLConnection connection = url.openConnection();
+                        long opened = System.nanoTime();
+                        long read = 0;
+                        try(InputStream in = connection.getInputStream()) {
+                            int n;
+                            while((n = in.read(buffer)) >= 0) {
+                                read += n;
+                            }
+                        }
+                        long done = System.nanoTime();
+                        if(read != stubOptions.getObjectSize()) {
+                            errors.merge("Truncated", 1L, Long::sum);
+                            continue;
+                        }
+                        bytesRead.addAndGet(read);
+                        openLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(opened - opening));
+                        readLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(done - opened));
+                        totalLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(done - opening));
+                    } catch(IOException | RuntimeException e) {
+                        errors.merge(describe(e), 1L, Long::sum);
+                    }
+                }
+            };
+
+            List<Thread> threads = new ArrayList<>(options.getThreads());
+            for(int i = 0; i < options.getThreads(); i++) {
+                Thread thread = new Thread(worker, "load-test-" + i);
+                thread.start();
+                threads.add(thread);
+            }
+            try {
+                for(Thread thread : threads) {
+                    thread.join();
+                }
+            } finally {
+                threads.forEach(Thread::interrupt);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            return new LoadTestResult(openLatency, readLatency, totalLatency, elapsed, bytesRead.get(), errors,
+                    clientFactory.getClientsCreated(), stub.getConnections(), stub.getRequests(),
+                    stub.getSlowDowns(), stub.getResets());
+        }
+    }
+
+    private List<URL> createUrls(URLStreamHandler handler) throws MalformedURLException {
+        List<URL> urls = new ArrayList<>(options.getObjects());
+        for(int i = 0; i < options.getObjects(); i++) {
+            // The stub doesn't check signatures but static credentials keep the default chain out of the way. The
+            // region is left out so the region of each bucket is discovered like it would be against S3.
+            String spec = "s3://loadtest:loadtest@bucket-" + (i % options.getBuckets()) + "/object-" + i;
+            urls.add(new URL(null, spec, handler));
+        }
+        return urls;
+    }
+
+    private static String describe(Exception e) {
+        if(e instanceof AmazonServiceException) {
+            return e.getClass().getSimpleName() + " " + ((AmazonServiceException) e).getErrorCode();
+        }
+        return e.getClass().getSimpleName();
+    }
+
+    /**
+     * Run a load test from the command line and print the report.
+     *
+     * Options are given as {@code --name value}, e.g. {@code --threads 32 --slowdown 0.01}.
+     *
+     * @param args The command line arguments
+     * @throws Exception If the test can't be run
+     */
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = new LoadTestOptions();
+        StubOptions stubOptions = new StubOptions();
+        for(int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if("--help".equals(name)) {
+                printUsage();
+                return;
+            }
+            if(i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + name);
+            }
+            String value = args[++i];
+            switch(name) {
+                case "--threads": options.setThreads(Integer.parseInt(value)); break;
+                case "--requests": options.setRequests(Long.parseLong(value)); break;
+                case "--duration": options.setDurationSeconds(Long.parseLong(value)); break;
+                case "--objects": options.setObjects(Integer.parseInt(value)); break;
+                case "--buckets": options.setBuckets(Integer.parseInt(value)); break;
+                case "--object-size": stubOptions.setObjectSize(Long.parseLong(value)); break;
+                case "--latency": stubOptions.setLatencyMillis(Long.parseLong(value)); break;
+                case "--bandwidth": stubOptions.setBytesPerSecond(Long.parseLong(value)); break;
+                case "--slowdown": stubOptions.setSlowDownRate(Double.parseDouble(value)); break;
+                case "--reset": stubOptions.setResetRate(Double.parseDouble(value)); break;
+                default: throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        new LoadTest(options, stubOptions).run().print(System.out);
+    }
+
+    private static void printUsage() {
+        System.out.println("Options:");
+        System.out.println("  --threads <n>        Threads making requests (default 8)");
+        System.out.println("  --requests <n>       Objects to read, 0 for no limit (default 10000)");
+        System.out.println("  --duration <s>       Maximum duration in seconds, 0 for no limit (default 0)");
+        System.out.println("  --objects <n>        Distinct objects to read (default 100)");
+        System.out.println("  --buckets <n>        Distinct buckets to spread the objects over (default 1)");
+        System.out.println("  --object-size <b>    Size of each object in bytes (default 1048576)");
+        System.out.println("  --latency <ms>       Delay before each response (default 0)");
+        System.out.println("  --bandwidth <b/s>    Bandwidth limit per response, 0 for no limit (default 0)");
+        System.out.println("  --slowdown <rate>    Fraction of requests rejected with 503 SlowDown (default 0)");
+        System.out.println("  --reset <rate>       Fraction of downloads cut off halfway (default 0)");
+    }
+}
@@ -0,0 +1,53 @@
+package se.raneland.urlhandler.loadtest;
+
+import lombok.Data;
+
+/**
+ * Options for the workload generated by {@link LoadTest}.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+@Data
+public class LoadTestOptions {
+
+    /**
+     * The number of threads making requests at the same time.
+     *
+     * @param threads The number of threads making requests at the same time
+     * @return The number of threads making requests at the same time
+     */
+    private int threads = 8;
+
+    /**
+     * The total number of objects to read, or 0 to read until the duration has passed.
+     *
+     * @param requests The total number of objects to read
+     * @return The total number of objects to read
+     */
+    private long requests = 10000;
+
+    /**
+     * The maximum duration of the test in seconds, or 0 for no limit.
+     *
+     * @param durationSeconds The maximum duration of the test in seconds
+     * @return The maximum duration of the test in seconds
+     */
+    private long durationSeconds;
+
+    /**
+     * The number of distinct objects to read, spread over the requests round robin.
+     *
+     * @param objects The number of distinct objects to read
+     * @return The number of distinct objects to read
+     */
+    private int objects = 100;
+
+    /**
+     * The number of distinct buckets the objects are spread over.
+     *
+     * @param buckets The number of distinct buckets the objects are spread over
+     * @return The number of distinct buckets the objects are spread over
+     */
+    private int buckets = 1;
+}
@@ -0,0 +1,83 @@
+package se.raneland.urlhandler.loadtest;
+
+import lombok.Data;
+import org.HdrHistogram.Histogram;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of a {@link LoadTest} run.
+ *
+ * Latencies are recorded in microseconds.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+@Data
+public class LoadTestResult {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /**
+     * Time from opening the URL until it was connected, i.e. the metadata request.
+     */
+    private final Histogram openLatency;
+    /**
+     * Time from the URL being connected until the whole object had been read.
+     */
+    private final Histogram readLatency;
+    /**
+     * Time from opening the URL until the whole object had been read.
+     */
+    private final Histogram totalLatency;
+    private final long elapsedNanos;
+    private final long bytesRead;
+    private final Map<String, Long> errors;
+    private final int clientsCreated;
+    private final int stubConnections;
+    private final long stubRequests;
+    private final long stubSlowDowns;
+    private final long stubResets;
+
+    public long getSuccesses() {
+        return totalLatency.getTotalCount();
+    }
+
+    public long getFailures() {
+        return errors.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Print a human readable report.
+     *
+     * @param out The stream to print to
+     */
+    public void print(PrintStream out) {
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        out.printf("Requests:    %d succeeded, %d failed in %.2f s%n", getSuccesses(), getFailures(), seconds);
+        out.printf("Throughput:  %.1f req/s, %.1f MiB/s%n", getSuccesses() / seconds,
+                bytesRead / seconds / (1024 * 1024));
+        out.printf("%-12s %10s %10s %10s %10s %10s%n", "Latency (ms)", "p50", "p90", "p99", "p99.9", "max");
+        printLatency(out, "open", openLatency);
+        printLatency(out, "read", readLatency);
+        printLatency(out, "total", totalLatency);
+        if(!errors.isEmpty()) {
+            out.println("Errors:");
+            new TreeMap<>(errors).forEach((type, count) -> out.printf("  %-40s %d%n", type, count));
+        }
+        out.printf("Clients:     %d created%n", clientsCreated);
+        out.printf("Stub:        %d requests over %d connections, %d slowdowns, %d resets%n",
+                stubRequests, stubConnections, stubSlowDowns, stubResets);
+    }
+
+    private static void printLatency(PrintStream out, String name, Histogram histogram) {
+        out.printf("%-12s", name);
+        for(double percentile : PERCENTILES) {
+            out.printf(" %10.2f", histogram.getValueAtPercentile(percentile) / 1000.0);
+        }
+        out.printf(" %10.2f%n", histogram.getMaxValue() / 1000.0);
+    }
+}
@@ -0,0 +1,235 @@
+package se.raneland.urlhandler.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process HTTP server that answers the S3 requests made by the S3 URL handler, i.e. bucket location, object
+ * metadata and object downloads, with injectable faults.
+ *
+ * Requests are expected in path style, {@code /bucket/key}. Every key exists and has the configured size and
+ * content that is the same for every request. Signatures are not checked.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class S3Stub implements AutoCloseable {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final String LAST_MODIFIED = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+            ZonedDateTime.of(2015, 8, 23, 0, 0, 0, 0, ZoneOffset.UTC));
+
+    private final StubOptions options;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[] chunk;
+    private final String eTag;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong slowDowns = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create and start a new stub on a random port on the loopback interface.
+     *
+     * @param options The objects to serve and the faults to inject
+     * @throws IOException If the server can't be started
+     */
+    public S3Stub(StubOptions options) throws IOException {
+        this.options = options;
+        this.chunk = new byte[CHUNK_SIZE];
+        Arrays.fill(chunk, (byte) 'x');
+        this.eTag = md5(chunk, options.getObjectSize());
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "s3-stub");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Get the endpoint that S3 clients should connect to.
+     *
+     * @return The endpoint of the stub
+     */
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getSlowDowns() {
+        return slowDowns.get();
+    }
+
+    public long getResets() {
+        return resets.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Get the number of distinct client connections that have made requests.
+     *
+     * @return The number of client connections
+     */
+    public int getConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            // The connection is only kept alive if the request has been read, even if it has no body
+            exchange.getRequestBody().close();
+            connections.add(exchange.getRemoteAddress());
+            sleep(options.getLatencyMillis());
+            if(ThreadLocalRandom.current().nextDouble() < options.getSlowDownRate()) {
+                slowDowns.incrementAndGet();
+                sendError(exchange, 503, "SlowDown", "Please reduce your request rate.");
+                return;
+            }
+            String[] path = exchange.getRequestURI().getPath().replaceAll("^/+", "").split("/", 2);
+            String query = exchange.getRequestURI().getQuery();
+            if(path.length == 1 && query != null && query.startsWith("location")) {
+                sendBody(exchange, 200, "application/xml",
+                        "<LocationConstraint xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"/>");
+            } else if(path.length == 2 && "HEAD".equals(exchange.getRequestMethod())) {
+                setObjectHeaders(exchange);
+                exchange.sendResponseHeaders(200, -1);
+            } else if(path.length == 2 && "GET".equals(exchange.getRequestMethod())) {
+                sendObject(exchange);
+            } else {
+                sendError(exchange, 400, "InvalidRequest", "Not supported by the stub");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void setObjectHeaders(HttpExchange exchange) {
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.getResponseHeaders().set("ETag", "\"" + eTag + "\"");
+        exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+        exchange.getResponseHeaders().set("Content-Length", String.valueOf(options.getObjectSize()));
+    }
+
+    private void sendObject(HttpExchange exchange) throws IOException {
+        long size = options.getObjectSize();
+        // Close the connection halfway through the object if we should reset it
+        long limit = ThreadLocalRandom.current().nextDouble() < options.getResetRate() ? size / 2 : size;
+        setObjectHeaders(exchange);
+        exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+        OutputStream body = exchange.getResponseBody();
+        long start = System.nanoTime();
+        long sent = 0;
+        while(sent < limit) {
+            int length = (int) Math.min(CHUNK_SIZE, limit - sent);
+            body.write(chunk, 0, length);
+            sent += length;
+            bytesSent.addAndGet(length);
+            throttle(start, sent);
+        }
+        if(limit < size) {
+            resets.incrementAndGet();
+            // Closing the exchange before the whole body has been sent closes the connection
+            return;
+        }
+        body.flush();
+    }
+
+    private void throttle(long start, long sent) {
+        if(options.getBytesPerSecond() <= 0) {
+            return;
+        }
+        long expectedNanos = sent * 1_000_000_000L / options.getBytesPerSecond();
+        long aheadNanos = expectedNanos - (System.nanoTime() - start);
+        if(aheadNanos > 0) {
+            sleep(aheadNanos / 1_000_000);
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+        sendBody(exchange, status, "application/xml", "<Error><Code>" + code + "</Code><Message>" + message
+                + "</Message><RequestId>" + UUID.randomUUID() + "</RequestId></Error>");
+    }
+
+    private void sendBody(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        if("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        bytesSent.addAndGet(bytes.length);
+    }
+
+    /**
+     * Calculate the MD5 of an object, S3 uses it as the ETag of objects that aren't uploaded in parts and the S3
+     * client verifies downloads against it.
+     */
+    private static String md5(byte[] chunk, long size) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        }
+        for(long digested = 0; digested < size; digested += chunk.length) {
+            digest.update(chunk, 0, (int) Math.min(chunk.length, size - digested));
+        }
+        StringBuilder hex = new StringBuilder();
+        for(byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static void sleep(long millis) {
+        if(millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package se.raneland.urlhandler.loadtest;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import se.raneland.urlhandler.aws.ClientCreationException;
+import se.raneland.urlhandler.aws.ClientOptions;
+import se.raneland.urlhandler.aws.DefaultAwsClientFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link DefaultAwsClientFactory} that points every client at an {@link S3Stub}.
+ *
+ * Clients are cached by the options of the URL just like with the default factory so the number of clients created
+ * reflects what the S3 URL handler would create against S3.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class StubAwsClientFactory extends DefaultAwsClientFactory<AmazonS3Client> {
+
+    private final String endpoint;
+    private final AtomicInteger clientsCreated = new AtomicInteger();
+
+    /**
+     * Create a new factory.
+     *
+     * @param endpoint The endpoint of the stub, e.g. {@link S3Stub#getEndpoint()}
+     */
+    public StubAwsClientFactory(String endpoint) {
+        super(AmazonS3Client.class);
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Get the number of clients that have been created, i.e. the number of cache misses.
+     *
+     * @return The number of clients created
+     */
+    public int getClientsCreated() {
+        return clientsCreated.get();
+    }
+
+    @Override
+    public AmazonS3Client create(ClientOptions options) throws ClientCreationException {
+        ClientOptions stubOptions = new ClientOptions();
+        if(options != null) {
+            stubOptions.setProfile(options.getProfile());
+            stubOptions.setAccessKeyId(options.getAccessKeyId());
+            stubOptions.setSecretAccessKey(options.getSecretAccessKey());
+            stubOptions.setRegion(options.getRegion());
+        }
+        stubOptions.setEndpoint(endpoint);
+        return super.create(stubOptions);
+    }
+
+    @Override
+    protected AmazonS3Client createClient(AWSCredentialsProvider credentialsProvider, ClientConfiguration configuration) throws ClientCreationException {
+        AmazonS3Client client = super.createClient(credentialsProvider, configuration);
+        // The stub is reached by address so the bucket can't be in the host name
+        client.setS3ClientOptions(S3ClientOptions.builder().setPathStyleAccess(true).build());
+        clientsCreated.incrementAndGet();
+        return client;
+    }
+}
@@ -0,0 +1,53 @@
+package se.raneland.urlhandler.loadtest;
+
+import lombok.Data;
+
+/**
+ * Options for the objects served by {@link S3Stub} and the faults it injects.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+@Data
+public class StubOptions {
+
+    /**
+     * The size of every object in bytes.
+     *
+     * @param objectSize The size of every object in bytes
+     * @return The size of every object in bytes
+     */
+    private long objectSize = 1024 * 1024;
+
+    /**
+     * The delay before each response in milliseconds.
+     *
+     * @param latencyMillis The delay before each response in milliseconds
+     * @return The delay before each response in milliseconds
+     */
+    private long latencyMillis;
+
+    /**
+     * The maximum number of bytes per second to send for each response, or 0 for no limit.
+     *
+     * @param bytesPerSecond The maximum number of bytes per second to send for each response
+     * @return The maximum number of bytes per second to send for each response
+     */
+    private long bytesPerSecond;
+
+    /**
+     * The fraction of requests, between 0 and 1, that are rejected with 503 SlowDown.
+     *
+     * @param slowDownRate The fraction of requests that are rejected with 503 SlowDown
+     * @return The fraction of requests that are rejected with 503 SlowDown
+     */
+    private double slowDownRate;
+
+    /**
+     * The fraction of object downloads, between 0 and 1, where the connection is closed halfway through the object.
+     *
+     * @param resetRate The fraction of object downloads where the connection is closed halfway through the object
+     * @return The fraction of object downloads where the connection is closed halfway through the object
+     */
+    private double resetRate;
+}
@@ -0,0 +1,81 @@
+package se.raneland.urlhandler.loadtest
+
+import com.amazonaws.services.s3.model.AmazonS3Exception
+import se.raneland.urlhandler.aws.s3.S3ProtocolStreamHandlerFactory
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+
+class LoadTestSpec extends Specification {
+
+    StubOptions stubOptions = new StubOptions(objectSize: 100 * 1024)
+
+    @AutoCleanup
+    S3Stub stub
+
+    def url(String spec) {
+        def handler = new S3ProtocolStreamHandlerFactory(new StubAwsClientFactory(stub.endpoint)).createStreamHandler("s3")
+        return new URL(null, spec, handler)
+    }
+
+    def "That objects can be read from the stub through the S3 URL handler"() {
+        given: "A stub"
+        stub = new S3Stub(stubOptions)
+
+        when: "An object is read"
+        def connection = url("s3://key:secret@bucket/some/object").openConnection()
+        def bytes = connection.inputStream.bytes
+
+        then: "The whole object is returned"
+        connection.contentLengthLong == 100 * 1024
+        bytes.length == 100 * 1024
+
+        and: "The region was discovered through the stub"
+        stub.requests == 3
+    }
+
+    def "That slowdowns are returned as errors"() {
+        given: "A stub that rejects every request"
+        stubOptions.slowDownRate = 1
+        stub = new S3Stub(stubOptions)
+
+        when: "An object is opened"
+        url("s3://key:secret@bucket.us-east-1/object").openConnection()
+
+        then: "The client gives up after retrying"
+        def e = thrown(AmazonS3Exception)
+        e.statusCode == 503
+        stub.slowDowns > 1
+    }
+
+    def "That reset downloads are cut short"() {
+        given: "A stub that resets every download"
+        stubOptions.resetRate = 1
+        stub = new S3Stub(stubOptions)
+
+        when: "An object is read"
+        url("s3://key:secret@bucket.us-east-1/object").openConnection().inputStream.bytes
+
+        then: "Reading fails"
+        thrown(IOException)
+        stub.resets == 1
+    }
+
+    def "That a load test reports every request"() {
+        given: "A small load test"
+        def options = new LoadTestOptions(threads: 4, requests: 200, objects: 10, buckets: 2)
+        stubOptions.resetRate = 0.1
+
+        when: "The test is run"
+        def result = new LoadTest(options, stubOptions).run()
+
+        then: "Every request either succeeded or failed"
+        result.successes + result.failures == 200
+        result.successes > 0
+        result.totalLatency.totalCount == result.successes
+        result.bytesRead == result.successes * 100 * 1024
+
+        and: "Clients were reused"
+        result.clientsCreated < 10
+        result.stubConnections < result.stubRequests
+    }
+}
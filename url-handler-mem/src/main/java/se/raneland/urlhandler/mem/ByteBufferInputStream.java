@@ -0,0 +1,121 @@
+package se.raneland.urlhandler.mem;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * {@link InputStream} that reads directly from a {@link ByteBuffer}.
+ *
+ * The buffer is read in place, its content is never copied except into the arrays passed to {@link #read(byte[])}.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Create a new stream that reads the remaining bytes of a buffer.
+     *
+     * @param buffer The buffer to read, its position is advanced as the stream is read
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        if(!buffer.hasRemaining()) {
+            return -1;
+        }
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if(len == 0) {
+            return 0;
+        }
+        if(!buffer.hasRemaining()) {
+            return -1;
+        }
+        len = Math.min(len, buffer.remaining());
+        buffer.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        buffer.mark();
+    }
+
+    @Override
+    public synchronized void reset() {
+        buffer.reset();
+    }
+
+    /**
+     * Get a view of the unread bytes of the stream.
+     *
+     * Reading the view does not advance the stream.
+     *
+     * @return A view of the unread bytes
+     */
+    public ByteBuffer getBuffer() {
+        return buffer.slice();
+    }
+
+    /**
+     * Get a channel that reads from the same position as this stream.
+     *
+     * @return A channel sharing position with this stream
+     */
+    public ReadableByteChannel getChannel() {
+        return new ReadableByteChannel() {
+
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst) {
+                if(!buffer.hasRemaining()) {
+                    return -1;
+                }
+                int length = Math.min(dst.remaining(), buffer.remaining());
+                ByteBuffer chunk = buffer.slice();
+                chunk.limit(length);
+                dst.put(chunk);
+                buffer.position(buffer.position() + length);
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+}
@@ -0,0 +1,38 @@
+package se.raneland.urlhandler.mem;
+
+import se.raneland.urlhandler.ProtocolStreamHandlerFactory;
+
+import java.net.URLStreamHandler;
+
+/**
+ * {@link ProtocolStreamHandlerFactory} for {@code mem:} urls backed by a {@link MemoryStore}.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class MemoryProtocolStreamHandlerFactory implements ProtocolStreamHandlerFactory {
+
+    private final MemoryStore store;
+
+    public MemoryProtocolStreamHandlerFactory() {
+        this(MemoryStore.getDefault());
+    }
+
+    public MemoryProtocolStreamHandlerFactory(MemoryStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public String[] getSupportedProtocols() {
+        return new String[]{ "mem" };
+    }
+
+    @Override
+    public URLStreamHandler createStreamHandler(String protocol) {
+        return new MemoryUrlStreamHandler(store);
+    }
+
+    public MemoryStore getStore() {
+        return store;
+    }
+}
@@ -0,0 +1,220 @@
+package se.raneland.urlhandler.mem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Store of data kept outside the Java heap.
+ *
+ * Data is copied into direct {@link ByteBuffer}s or memory mapped from files. Reads never lock and return read-only
+ * views of the stored buffers without copying any data. Writes replace the previous data for a key atomically,
+ * readers that already have a view of the previous data can keep using it.
+ *
+ * If the total size of the stored data exceeds the maximum size of the store the least recently read entries are
+ * evicted until it fits again.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class MemoryStore {
+
+    private static final MemoryStore DEFAULT = new MemoryStore();
+
+    /**
+     * Get the store used by {@link MemoryProtocolStreamHandlerFactory}s that aren't given a store of their own.
+     *
+     * @return The shared store
+     */
+    public static MemoryStore getDefault() {
+        return DEFAULT;
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final AtomicLong size;
+    private final long maxSize;
+
+    /**
+     * Create a new store without a maximum size.
+     */
+    public MemoryStore() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a new store.
+     *
+     * @param maxSize The maximum number of bytes to store
+     */
+    public MemoryStore(long maxSize) {
+        if(maxSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive");
+        }
+        this.entries = new ConcurrentHashMap<>();
+        this.size = new AtomicLong();
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Store a copy of some data outside the heap, replacing any data previously stored for the key.
+     *
+     * @param key The key to store the data under
+     * @param data The data to store, the remaining bytes are copied and the buffer is not modified
+     */
+    public void put(String key, ByteBuffer data) {
+        ByteBuffer copy = ByteBuffer.allocateDirect(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        store(key, copy);
+    }
+
+    /**
+     * Store a copy of some data outside the heap, replacing any data previously stored for the key.
+     *
+     * @param key The key to store the data under
+     * @param data The data to store
+     */
+    public void put(String key, byte[] data) {
+        put(key, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Memory map a file, replacing any data previously stored for the key.
+     *
+     * Later changes to the file may or may not be visible through the store.
+     *
+     * @param key The key to store the data under
+     * @param file The file to map
+     * @throws IOException If the file can't be mapped
+     */
+    public void map(String key, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            store(key, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Get a read-only view of the data stored for a key.
+     *
+     * The view shares its content with the store but has its own position and limit.
+     *
+     * @param key The key to get the data for
+     * @return The data or null if nothing is stored for the key
+     */
+    public ByteBuffer get(String key) {
+        Entry entry = entries.get(key);
+        if(entry == null) {
+            return null;
+        }
+        entry.lastAccess = System.nanoTime();
+        return entry.data.duplicate();
+    }
+
+    /**
+     * Remove the data stored for a key.
+     *
+     * @param key The key to remove the data for
+     * @return If there was any data stored for the key
+     */
+    public boolean remove(String key) {
+        Entry entry = entries.remove(key);
+        if(entry == null) {
+            return false;
+        }
+        size.addAndGet(-entry.size);
+        return true;
+    }
+
+    /**
+     * Check if any data is stored for a key.
+     *
+     * @param key The key to check
+     * @return If there is any data stored for the key
+     */
+    public boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Get the total number of bytes stored.
+     *
+     * @return The total number of bytes stored
+     */
+    public long size() {
+        return size.get();
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    private void store(String key, ByteBuffer data) {
+        if(data.remaining() > maxSize) {
+            throw new IllegalArgumentException("Data for " + key + " is larger than the maximum size of the store");
+        }
+        Entry entry = new Entry(data.asReadOnlyBuffer(), System.nanoTime());
+        Entry previous = entries.put(key, entry);
+        size.addAndGet(entry.size - (previous != null ? previous.size : 0));
+        if(size.get() > maxSize) {
+            evict(entry);
+        }
+    }
+
+    /**
+     * Evict the least recently read entries until the store fits within its maximum size.
+     *
+     * @param keep An entry that should not be evicted
+     */
+    private synchronized void evict(Entry keep) {
+        if(size.get() <= maxSize) {
+            return;
+        }
+        // Snapshot the access times since they may change while we sort
+        List<Candidate> candidates = new ArrayList<>(entries.size());
+        for(Map.Entry<String, Entry> entry : entries.entrySet()) {
+            candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+        }
+        candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccess));
+        for(Candidate candidate : candidates) {
+            if(size.get() <= maxSize) {
+                break;
+            }
+            // Only remove the entry if it hasn't been replaced since we looked
+            if(candidate.entry != keep && entries.remove(candidate.key, candidate.entry)) {
+                size.addAndGet(-candidate.entry.size);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final ByteBuffer data;
+        private final long size;
+        private volatile long lastAccess;
+
+        private Entry(ByteBuffer data, long lastAccess) {
+            this.data = data;
+            this.size = data.remaining();
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private static class Candidate {
+        private final String key;
+        private final Entry entry;
+        private final long lastAccess;
+
+        private Candidate(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+            this.lastAccess = entry.lastAccess;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package se.raneland.urlhandler.mem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link URLConnection} implementation for {@code mem:} urls.
+ *
+ * Both {@code mem:/path/to/key} and {@code mem://path/to/key} refer to the key {@code path/to/key} in the
+ * {@link MemoryStore}.
+ *
+ * The data is looked up when connecting and stays the same for the lifetime of the connection even if the key is
+ * replaced. Data written to the output stream replaces the data for the key when the stream is closed.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class MemoryUrlConnection extends URLConnection {
+
+    private final MemoryStore store;
+    private final String key;
+
+    private ByteBuffer data;
+
+    public MemoryUrlConnection(MemoryStore store, URL url) {
+        super(url);
+        this.store = store;
+        String host = url.getHost();
+        String path = url.getPath();
+        if(host != null && !host.isEmpty()) {
+            path = host + path;
+        }
+        this.key = path.replaceAll("^/+", "");
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if(connected) {
+            return;
+        }
+        data = store.get(key);
+        if(data == null && !getDoOutput()) {
+            throw new FileNotFoundException(url.toString());
+        }
+        connected = true;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+        if(!ensureConnected() || data == null) {
+            return -1;
+        }
+        return data.remaining();
+    }
+
+    @Override
+    public String getContentType() {
+        return guessContentTypeFromName(key);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        connect();
+        if(data == null) {
+            throw new FileNotFoundException(url.toString());
+        }
+        return new ByteBufferInputStream(data.duplicate());
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if(!getDoOutput()) {
+            throw new IOException("Output not enabled, call setDoOutput(true) first");
+        }
+        connect();
+        return new ByteArrayOutputStream() {
+
+            private boolean closed;
+
+            @Override
+            public void close() {
+                if(!closed) {
+                    closed = true;
+                    store.put(key, ByteBuffer.wrap(buf, 0, count));
+                }
+            }
+        };
+    }
+
+    private boolean ensureConnected() {
+        try {
+            connect();
+            return true;
+        } catch(IOException e) {
+            return false;
+        }
+    }
+}
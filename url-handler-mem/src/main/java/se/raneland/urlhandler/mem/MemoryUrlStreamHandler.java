@@ -0,0 +1,27 @@
+package se.raneland.urlhandler.mem;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+/**
+ * {@link URLStreamHandler} for {@code mem:} urls.
+ *
+ * @author Raniz
+ * @since 2.1
+ */
+public class MemoryUrlStreamHandler extends URLStreamHandler {
+
+    private final MemoryStore store;
+
+    public MemoryUrlStreamHandler(MemoryStore store) {
+        this.store = store;
+    }
+
+    @Override
+    protected URLConnection openConnection(URL u) throws IOException {
+        // Not connected here since connecting fails for keys that are about to be written
+        return new MemoryUrlConnection(store, u);
+    }
+}
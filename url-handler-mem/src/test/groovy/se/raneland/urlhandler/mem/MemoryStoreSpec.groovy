@@ -0,0 +1,114 @@
+package se.raneland.urlhandler.mem
+
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.ReadOnlyBufferException
+import java.nio.file.Files
+
+class MemoryStoreSpec extends Specification {
+
+    def "That stored data is kept off heap and returned as read-only views"() {
+        given: "A store with some data"
+        def store = new MemoryStore()
+        def bytes = "data".bytes
+        store.put("key", bytes)
+
+        when: "The data is retrieved twice"
+        def view1 = store.get("key")
+        def view2 = store.get("key")
+        view1.get()
+
+        then: "The views are direct, independent and contain a copy of the data"
+        view1.direct
+        view1.readOnly
+        view2.remaining() == bytes.length
+        toBytes(view2) == bytes
+
+        when: "A view is modified"
+        view1.put(0, 1 as byte)
+
+        then: "It is not allowed"
+        thrown(ReadOnlyBufferException)
+    }
+
+    def "That replacing data doesn't affect existing views"() {
+        given: "A store with some data and a view of the data"
+        def store = new MemoryStore()
+        store.put("key", "old".bytes)
+        def oldView = store.get("key")
+
+        when: "The data is replaced"
+        store.put("key", "newer".bytes)
+
+        then: "The old view is unchanged, new views see the new data and the size is updated"
+        toBytes(oldView) == "old".bytes
+        toBytes(store.get("key")) == "newer".bytes
+        store.size() == 5
+    }
+
+    def "That files can be memory mapped"() {
+        given: "A file"
+        def file = Files.createTempFile("memory-store", ".txt")
+        file.toFile().deleteOnExit()
+        file.toFile().text = "mapped"
+        def store = new MemoryStore()
+
+        when: "The file is mapped"
+        store.map("key", file)
+
+        then: "The content is available from the store"
+        toBytes(store.get("key")) == "mapped".bytes
+        store.size() == 6
+    }
+
+    def "That the least recently read data is evicted when the store is full"() {
+        given: "A full store where the first entry has been read after the second"
+        def store = new MemoryStore(10)
+        store.put("first", new byte[4])
+        store.put("second", new byte[4])
+        store.get("first")
+
+        when: "Data that doesn't fit is added"
+        store.put("third", new byte[4])
+
+        then: "The second entry is evicted"
+        store.contains("first")
+        !store.contains("second")
+        store.contains("third")
+        store.size() == 8
+    }
+
+    def "That removing data updates the size"() {
+        given: "A store with some data"
+        def store = new MemoryStore()
+        store.put("key", new byte[4])
+
+        when: "The data is removed twice"
+        def first = store.remove("key")
+        def second = store.remove("key")
+
+        then: "Only the first removal removes anything"
+        first
+        !second
+        store.size() == 0
+        store.get("key") == null
+    }
+
+    def "That data larger than the store is rejected"() {
+        given: "A small store"
+        def store = new MemoryStore(2)
+
+        when: "Data that is too large is added"
+        store.put("key", ByteBuffer.allocate(3))
+
+        then: "It is rejected"
+        thrown(IllegalArgumentException)
+    }
+
+    def toBytes(ByteBuffer buffer) {
+        def bytes = new byte[buffer.remaining()]
+        buffer.duplicate().get(bytes)
+        return bytes
+    }
+}
@@ -0,0 +1,81 @@
+package se.raneland.urlhandler.mem
+
+import se.raneland.urlhandler.PluggableUrlStreamHandlerFactory
+import spock.lang.Specification
+
+class MemoryUrlConnectionSpec extends Specification {
+
+    MemoryStore store = new MemoryStore()
+
+    def handler = new MemoryProtocolStreamHandlerFactory(store).createStreamHandler("mem")
+
+    def "That urls are mapped to keys"() {
+        expect:
+        new MemoryUrlConnection(store, new URL(null, url, handler)).key == expectedKey
+
+        where:
+        url                     | expectedKey
+        "mem:/path/to/key"      | "path/to/key"
+        "mem://path/to/key"     | "path/to/key"
+        "mem:///path/to/key"    | "path/to/key"
+        "mem:key"               | "key"
+    }
+
+    def "That stored data can be read"() {
+        given: "Some stored data"
+        store.put("templates/index.html", "<html/>".bytes)
+        def url = new URL(null, "mem:/templates/index.html", handler)
+
+        when: "The data is read through the url"
+        def connection = url.openConnection()
+        def content = connection.inputStream.text
+
+        then: "The data and metadata are returned"
+        content == "<html/>"
+        connection.contentLengthLong == 7
+        connection.contentType == "text/html"
+    }
+
+    def "That written data replaces the stored data when the stream is closed"() {
+        given: "Some stored data"
+        store.put("key", "old".bytes)
+        def url = new URL(null, "mem:/key", handler)
+        def reader = url.openConnection()
+        reader.connect()
+
+        when: "New data is written"
+        def connection = url.openConnection()
+        connection.doOutput = true
+        def stream = connection.outputStream
+        stream.write("new".bytes)
+
+        then: "The data isn't replaced until the stream is closed"
+        url.openStream().text == "old"
+
+        when: "The stream is closed"
+        stream.close()
+
+        then: "New connections see the new data while existing connections keep the old data"
+        url.openStream().text == "new"
+        reader.inputStream.text == "old"
+    }
+
+    def "That missing keys can't be read"() {
+        given: "An url to a key that doesn't exist"
+        def url = new URL(null, "mem:/missing", handler)
+
+        when: "The url is opened"
+        url.openStream()
+
+        then: "An exception is thrown"
+        thrown(FileNotFoundException)
+    }
+
+    def "That the memory protocol is discovered"() {
+        when: "Factories are discovered"
+        def factory = PluggableUrlStreamHandlerFactory.discover(getClass().classLoader)
+
+        then: "The memory protocol is supported"
+        factory.createURLStreamHandler("mem") instanceof MemoryUrlStreamHandler
+    }
+}